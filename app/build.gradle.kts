@@ -39,6 +39,7 @@ android {
 }
 
 dependencies {
+    implementation(project(":core"))
     // 1.3 seems to be the last version that doesn't pull in the kotlin stdlib
     implementation("androidx.annotation:annotation:1.3.0")
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package landau.smp;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts metadata for a whole song list on a small pool of background threads.
+ * Every worker uses its own ExtractionContext, so songs can be extracted in parallel.
+ * Progress and completion are reported on the main thread.
+ */
+public class BatchMetadataExtractor {
+    // Report progress at most once per this many songs
+    private static final int kProgressStep = 32;
+
+    public interface Listener {
+        void onProgress(int done, int total);
+        void onFinished(int done, int total, boolean cancelled);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int threadCount;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public BatchMetadataExtractor() {
+        // Extraction is mostly I/O bound, and too many threads just make the storage seek more
+        threadCount = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        executor = IoUtils.newExecutor("SMP metadata", threadCount);
+    }
+
+    public class Task {
+        private final SongTable table;
+        private final int size;
+        private final Listener listener;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger runningWorkers = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        private Task(SongTable table, Listener listener) {
+            this.table = table;
+            this.size = table.size();
+            this.listener = listener;
+        }
+
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        private void runWorker() {
+            int i;
+            while (!cancelled.get() && (i = next.getAndIncrement()) < size) {
+                // Rows of files that aren't played are known to fail, and are skipped here
+                table.get(i).extractMetadata();
+                int count = done.incrementAndGet();
+                if (count % kProgressStep == 0 && count != size) {
+                    mainHandler.post(() -> {
+                        if (!cancelled.get()) {
+                            listener.onProgress(count, size);
+                        }
+                    });
+                }
+            }
+            if (runningWorkers.decrementAndGet() == 0) {
+                int count = done.get();
+                boolean wasCancelled = cancelled.get();
+                mainHandler.post(() -> listener.onFinished(count, size, wasCancelled));
+            }
+        }
+    }
+
+    /**
+     * Starts extracting metadata for all songs of the table, in row order. Rows added later aren't extracted.
+     * Must be called on the main thread.
+     */
+    public Task start(SongTable table, Listener listener) {
+        Task task = new Task(table, listener);
+        int workers = Math.max(1, Math.min(threadCount, task.size));
+        task.runningWorkers.set(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(task::runWorker);
+        }
+        return task;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,259 @@
+package landau.smp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Loads cover art for songs: the embedded picture (ID3 APIC/PIC, FLAC PICTURE, MP4 covr), or else
+ * folder.jpg/cover.jpg next to the file. Images are downsampled to kTargetSize while decoding, and cached
+ * per album, in memory and on disk, so that a whole album costs one decode of the original image.
+ * Loading happens on a background thread, and results are delivered on the main thread.
+ */
+public class CoverArtCache {
+    private static final String TAG = CoverArtCache.class.getSimpleName();
+
+    // Largest side of the cached images, enough for lock screens and car head units
+    private static final int kTargetSize = 512;
+    private static final long kMaxDiskSize = 20 * 1024 * 1024;
+    // How many albums without any art to remember
+    private static final int kMaxMissing = 256;
+    private static final String[] kFolderImages = {
+            "folder.jpg", "cover.jpg", "front.jpg", "Folder.jpg", "Cover.jpg", "Front.jpg",
+            "folder.png", "cover.png", "front.png", "Folder.png", "Cover.png", "Front.png",
+    };
+
+    public interface Callback {
+        /**
+         * Called on the main thread. bitmap is null if the song has no cover art.
+         */
+        void onCoverArt(Song song, Bitmap bitmap);
+    }
+
+    private final LruCache<String, Bitmap> memoryCache;
+    private final LruCache<String, Boolean> missing = new LruCache<>(kMaxMissing);
+    private final File diskDir;
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public CoverArtCache(Context context) {
+        // A few albums' worth, the current one is what matters
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 16 * 1024 * 1024);
+        memoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        diskDir = new File(context.getCacheDir(), "covers");
+        executor = IoUtils.newSingleThreadExecutor("SMP cover art");
+    }
+
+    /**
+     * Loads the cover art of the song, whose metadata has to be extracted already, and passes it to callback.
+     * If it's in memory, callback is called right away.
+     */
+    public void load(Song song, Callback callback) {
+        String key = getAlbumKey(song);
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null || missing.get(key) != null) {
+            callback.onCoverArt(song, bitmap);
+            return;
+        }
+        executor.execute(() -> {
+            Bitmap result = null;
+            try {
+                result = loadBlocking(song, key);
+            } catch (RuntimeException e) {
+                // Corrupt images can make the decoder throw
+                Log.w(TAG, "Can't load cover art for " + song.getFilename(), e);
+            }
+            if (result != null) {
+                memoryCache.put(key, result);
+            } else {
+                missing.put(key, Boolean.TRUE);
+            }
+            Bitmap finalResult = result;
+            mainHandler.post(() -> callback.onCoverArt(song, finalResult));
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        memoryCache.evictAll();
+    }
+
+    /**
+     * Songs in the same directory with the same album share the image.
+     */
+    private static String getAlbumKey(Song song) {
+        String parent = new File(song.getFilename()).getParent();
+        String album = song.getAlbum();
+        return parent + '/' + (album != null ? album : "");
+    }
+
+    private Bitmap loadBlocking(Song song, String key) {
+        File audioFile = new File(song.getFilename());
+        File cacheFile = new File(diskDir, MetadataUtils.sha1Hex(key));
+        // The cached image is stale if the file it came from changed after it was written
+        if (cacheFile.lastModified() >= audioFile.lastModified()) {
+            Bitmap bitmap = decode(cacheFile);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = null;
+        byte[] data = extractEmbedded(song.getFilename());
+        if (data != null) {
+            bitmap = decode(data);
+        }
+        if (bitmap == null) {
+            File parent = audioFile.getParentFile();
+            for (String name : kFolderImages) {
+                File image = new File(parent, name);
+                if (image.isFile()) {
+                    bitmap = decode(image);
+                    break;
+                }
+            }
+        }
+        if (bitmap != null) {
+            writeToDisk(cacheFile, bitmap);
+        }
+        return bitmap;
+    }
+
+    private static byte[] extractEmbedded(String filename) {
+        ExtractionContext context = ExtractionContext.forCurrentThread();
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            switch (context.formatProbe.probe(reader)) {
+                case FLAC:
+                    return context.vorbisCommentExtractor.extractPicture(reader);
+                case MP4:
+                    return context.mp4Extractor.extractPicture(reader);
+                default:
+                    // ID3v2 is sometimes used in other formats too, e.g. in AAC
+                    return context.id3Extractor.extractPicture(reader);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Bitmap decode(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (!setSampleSize(options)) {
+            return null;
+        }
+        return scaleDown(BitmapFactory.decodeByteArray(data, 0, data.length, options));
+    }
+
+    private static Bitmap decode(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (!setSampleSize(options)) {
+            return null;
+        }
+        return scaleDown(BitmapFactory.decodeFile(file.getPath(), options));
+    }
+
+    /**
+     * Sets up options to decode the image, whose bounds they contain, at no less than kTargetSize,
+     * with the largest power of 2 subsampling. Returns false if the image is invalid.
+     */
+    private static boolean setSampleSize(BitmapFactory.Options options) {
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        int sampleSize = 1;
+        while (Math.max(width, height) / (sampleSize * 2) >= kTargetSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        // Covers don't need alpha, and this halves the memory
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return true;
+    }
+
+    private static Bitmap scaleDown(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int size = Math.max(width, height);
+        if (size <= kTargetSize) {
+            return bitmap;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, width * kTargetSize / size), Math.max(1, height * kTargetSize / size), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    private void writeToDisk(File cacheFile, Bitmap bitmap) {
+        if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+            return;
+        }
+        File tmpFile = new File(diskDir, cacheFile.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    /**
+     * Deletes the least recently written images until the cache fits in kMaxDiskSize.
+     */
+    private void trimDisk() {
+        File[] files = diskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= kMaxDiskSize) {
+            return;
+        }
+        //noinspection ComparatorCombinators (not available in API 16)
+        Arrays.sort(files, (lhs, rhs) -> Long.compare(lhs.lastModified(), rhs.lastModified()));
+        for (File f : files) {
+            if (total <= kMaxDiskSize) {
+                break;
+            }
+            total -= f.length();
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,591 @@
+package landau.smp;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists a played folder into a SongTable on background threads, so that opening a large folder doesn't
+ * block the main thread. Every directory is a separate fork/join task, so directories are listed in
+ * parallel and deep trees don't grow the stack. Directories reached again through symlinks are skipped.
+ * The resulting song list is in play order, and reported on the main thread.
+ * <p>
+ * The song to play first is found before the rest, by a descent that lists only the directories on its way.
+ * With streaming it's reported right away, so that playback doesn't wait for the whole tree. It stays first
+ * in the complete list, so the position in the partial list is valid in the complete one.
+ * <p>
+ * If the folder has a QueueSnapshot, it's used instead of scanning. The caller verifies it afterwards.
+ */
+public class DirectoryScanner {
+    private static final String TAG = DirectoryScanner.class.getSimpleName();
+
+    public interface Listener {
+        /**
+         * Called with streaming, as soon as the first song is known. songs holds only it, metadataCache
+         * is still being read. Not called if there are no songs.
+         */
+        void onFirstSong(SongList songs, MetadataCache metadataCache);
+
+        void onFinished(SongList songs, MetadataCache metadataCache);
+
+        /**
+         * Called instead of the others if the folder was restored from its snapshot. metadataCache isn't read,
+         * the snapshot has the metadata.
+         */
+        void onSnapshot(QueueSnapshot snapshot, MetadataCache metadataCache);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // ForkJoinPool on API 21+, where it and RecursiveAction were added, a single thread walking the tree
+    // before that. Declared as Object, so that this class doesn't reference ForkJoinPool where it's missing.
+    private final Object pool;
+
+    public DirectoryScanner() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            pool = Api21.createPool();
+        } else {
+            pool = IoUtils.newSingleThreadExecutor("SMP scan");
+        }
+    }
+
+    private static class Directory {
+        final File file;
+        final int id;
+
+        Directory(File file, int id) {
+            this.file = file;
+            this.id = id;
+        }
+    }
+
+    /**
+     * A directory being descended into by findFirstSong(). Its entries are sorted in path order, see
+     * SongList.sortByPath(): by the NaturalOrder of their names, with "/" appended to directories.
+     * The "/" only moves a directory past a sibling with the same key, e.g. "01" past "1", so only such
+     * siblings are told apart here, and get the "/". The rest are when they're reached, saving a stat per entry.
+     */
+    private static class Level {
+        final Directory dir;
+        final String[] keys;
+        // Entries before this were tried already
+        int next;
+
+        Level(Directory dir, NaturalOrder naturalOrder) {
+            this.dir = dir;
+            String[] names = dir.file.list();
+            keys = names != null ? names : new String[0];
+            naturalOrder.sort(keys);
+            byte[][] sortKeys = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                sortKeys[i] = naturalOrder.getKey(keys[i]);
+            }
+            int end;
+            for (int start = 0; start < keys.length; start = end) {
+                end = start + 1;
+                while (end < keys.length && NaturalOrder.compare(sortKeys[end], sortKeys[start]) == 0) {
+                    end++;
+                }
+                if (end - start > 1) {
+                    String[] run = Arrays.copyOfRange(keys, start, end);
+                    for (int i = 0; i < run.length; i++) {
+                        if (new File(dir.file, run[i]).isDirectory()) {
+                            run[i] += '/';
+                        }
+                    }
+                    naturalOrder.sort(run);
+                    System.arraycopy(run, 0, keys, start, run.length);
+                }
+            }
+        }
+    }
+
+    public class Task {
+        private final Context context;
+        private final String path;
+        private final SongTable table;
+        // Null to play in path order
+        private final Random shuffle;
+        private final boolean stream;
+        private final Listener listener;
+        private final SongList songs;
+        // Keys of the directories listed so far, see directoryKey()
+        private final Set<Object> visited = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private MetadataCache metadataCache;
+        // The song found by findFirstSong(), -1 if none
+        private int firstRow = -1;
+        private File firstParent;
+        private String firstName;
+        private boolean firstListed;
+        private boolean restored;
+        private volatile boolean cancelled;
+
+        private Task(Context context, String path, SongTable table, Random shuffle, boolean stream, Listener listener) {
+            this.context = context.getApplicationContext();
+            this.path = path;
+            this.table = table;
+            this.shuffle = shuffle;
+            this.stream = stream;
+            this.listener = listener;
+            this.songs = new SongList(table);
+        }
+
+        /**
+         * Stops the scan. The listener isn't called after this.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Finds the first song, reads the cache and returns the root directory. Returns null if path is a single file,
+         * which is added here, or if the snapshot was used.
+         */
+        private Directory begin() {
+            metadataCache = MetadataCache.create(context, path);
+            QueueSnapshot snapshot = QueueSnapshot.read(context, path, table.getAssumedCharset(), shuffle != null);
+            if (snapshot != null) {
+                restored = true;
+                MetadataCache cache = metadataCache;
+                mainHandler.post(() -> {
+                    if (!cancelled) {
+                        listener.onSnapshot(snapshot, cache);
+                    }
+                });
+                return null;
+            }
+            File root = new File(path).getAbsoluteFile();
+            if (!root.isDirectory()) {
+                metadataCache.read(table.getAssumedCharset());
+                // A file opened explicitly is played even if the probe doesn't recognize it
+                File parent = root.getParentFile();
+                addSong(new Directory(parent, table.addDirectory(-1, parent.getPath())), root.getName(),
+                        root.length(), root.lastModified(), false);
+                return null;
+            }
+            Directory rootDir = new Directory(root, table.addDirectory(-1, root.getPath()));
+            // In path order the first song is simply the first after sorting, unless it's needed right away
+            if (stream || shuffle != null) {
+                findFirstSong(rootDir);
+            }
+            if (stream && firstRow >= 0 && !cancelled) {
+                SongList first = new SongList(table);
+                first.addRow(firstRow);
+                MetadataCache cache = metadataCache;
+                mainHandler.post(() -> {
+                    if (!cancelled) {
+                        listener.onFirstSong(first, cache);
+                    }
+                });
+            }
+            // The cache grows with the folder, so it's read only after the first song is out
+            metadataCache.read(table.getAssumedCharset());
+            visited.add(directoryKey(root));
+            return rootDir;
+        }
+
+        /**
+         * Finds the first song in play order without listing the whole tree: the first audio file in path order,
+         * or with shuffle, a random one, found by descending into random entries. Every entry is as likely to be
+         * picked as its siblings, so it isn't uniform over files, but takes a few directory listings.
+         * The song is added to the table, but not restored from the cache, so that a failure the player records
+         * meanwhile isn't overwritten.
+         */
+        private void findFirstSong(Directory root) {
+            FormatProbe formatProbe = ExtractionContext.forCurrentThread().formatProbe;
+            NaturalOrder naturalOrder = new NaturalOrder();
+            Set<Object> descended = new HashSet<>();
+            descended.add(directoryKey(root.file));
+            ArrayDeque<Level> levels = new ArrayDeque<>();
+            levels.push(new Level(root, naturalOrder));
+            while (!levels.isEmpty() && !cancelled) {
+                Level level = levels.peek();
+                String[] keys = level.keys;
+                if (level.next == keys.length) {
+                    // Nothing to play in this directory
+                    levels.pop();
+                    continue;
+                }
+                if (shuffle != null) {
+                    int i = level.next + shuffle.nextInt(keys.length - level.next);
+                    String key = keys[i];
+                    keys[i] = keys[level.next];
+                    keys[level.next] = key;
+                }
+                String key = keys[level.next++];
+                String name = key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+                File file = new File(level.dir.file, name);
+                if (key.endsWith("/") || file.isDirectory()) {
+                    Object dirKey = directoryKey(file);
+                    if (dirKey == null || descended.add(dirKey)) {
+                        levels.push(new Level(new Directory(file, table.addDirectory(level.dir.id, name)),
+                                naturalOrder));
+                    }
+                } else {
+                    try {
+                        if (formatProbe.isAudio(file.getPath())) {
+                            firstRow = table.add(level.dir.id, name, file.length(), file.lastModified());
+                            firstParent = level.dir.file;
+                            firstName = name;
+                            return;
+                        }
+                    } catch (IOException ignored) {
+                        // Not the first song then, the scan decides what to do with it
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the songs of dir and appends its subdirectories that weren't listed yet to subdirs.
+         */
+        private void scanDirectory(Directory dir, List<Directory> subdirs) {
+            if (cancelled) {
+                return;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                Api26.scanDirectory(this, dir, subdirs);
+                return;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                Api21.scanDirectory(this, dir, subdirs);
+                return;
+            }
+            File[] files = dir.file.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File f : files) {
+                if (cancelled) {
+                    return;
+                }
+                if (f.isDirectory()) {
+                    addDirectory(dir, f.getName(), directoryKey(f), subdirs);
+                } else {
+                    addSong(dir, f.getName(), f.length(), f.lastModified(), true);
+                }
+            }
+        }
+
+        private void addDirectory(Directory parent, String name, Object key, List<Directory> subdirs) {
+            if (key != null && !visited.add(key)) {
+                // A symlink to a directory that is or will be listed, possibly an ancestor
+                return;
+            }
+            subdirs.add(new Directory(new File(parent.file, name), table.addDirectory(parent.id, name)));
+        }
+
+        /**
+         * Adds the file to the table, and to the song list unless it's known, or with probe, found not to be
+         * audio or not to play. A file that can't be probed is left out of this scan only.
+         */
+        private void addSong(Directory dir, String name, long fileSize, long lastModified, boolean probe) {
+            if (firstRow >= 0 && name.equals(firstName) && dir.file.equals(firstParent)) {
+                // Already added by findFirstSong()
+                synchronized (songs) {
+                    songs.addRow(firstRow);
+                    firstListed = true;
+                }
+                return;
+            }
+            Song song = table.get(table.add(dir.id, name, fileSize, lastModified));
+            if (metadataCache.restore(song)) {
+                Song.Failure failure = song.getFailure();
+                if (failure == Song.Failure.UNPLAYABLE || (probe && failure == Song.Failure.NOT_AUDIO)) {
+                    metadataCache.exclude(song, failure);
+                    return;
+                }
+            } else if (probe) {
+                try {
+                    if (!ExtractionContext.forCurrentThread().formatProbe.isAudio(song.getFilename())) {
+                        // Skip covers, playlists and such, otherwise they only fail in MediaPlayer.prepare()
+                        // at track change
+                        metadataCache.exclude(song, Song.Failure.NOT_AUDIO);
+                        return;
+                    }
+                } catch (IOException e) {
+                    // Maybe still being copied, or the card isn't ready, so not cached as NOT_AUDIO
+                    Log.w(TAG, "Can't probe " + song.getFilename(), e);
+                    return;
+                }
+            }
+            synchronized (songs) {
+                songs.addRow(song.getIndex());
+            }
+        }
+
+        private void finish() {
+            if (cancelled || restored) {
+                return;
+            }
+            if (firstRow >= 0 && !firstListed) {
+                // Listed through another path, e.g. a symlink. It may be playing already, so it stays.
+                songs.addRow(firstRow);
+            }
+            // Directories are listed in no particular order, sorting makes the result the same on every scan
+            songs.sortByPath();
+            int start = 0;
+            if (firstRow >= 0) {
+                // Normally first already in path order
+                songs.moveToFront(songs.indexOfRow(firstRow));
+                start = 1;
+            }
+            if (shuffle != null) {
+                songs.shuffle(shuffle.nextLong(), start);
+            }
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    listener.onFinished(songs, metadataCache);
+                }
+            });
+        }
+
+        private void runSequentially() {
+            Directory root = begin();
+            ArrayDeque<Directory> pending = new ArrayDeque<>();
+            if (root != null) {
+                pending.push(root);
+            }
+            List<Directory> subdirs = new ArrayList<>();
+            while (!pending.isEmpty() && !cancelled) {
+                scanDirectory(pending.pop(), subdirs);
+                for (Directory subdir : subdirs) {
+                    pending.push(subdir);
+                }
+                subdirs.clear();
+            }
+            finish();
+        }
+    }
+
+    /**
+     * Starts listing path, a folder or a single file, into table. With shuffle, the songs are shuffled with it,
+     * otherwise sorted by path. With stream, the first song is reported before the rest, see Listener.
+     * Must be called on the main thread.
+     */
+    public Task start(Context context, String path, SongTable table, Random shuffle, boolean stream,
+                      Listener listener) {
+        Task task = new Task(context, path, table, shuffle, stream, listener);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Api21.start(pool, task);
+        } else {
+            ((ThreadPoolExecutor) pool).execute(task::runSequentially);
+        }
+        return task;
+    }
+
+    public void shutdown() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Api21.shutdown(pool);
+        } else {
+            ((ThreadPoolExecutor) pool).shutdownNow();
+        }
+    }
+
+    /**
+     * Identifies a directory however it's reached. Null if it can't be determined, then it's listed anyway.
+     */
+    private static Object directoryKey(File dir) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                return Api26.directoryKey(dir);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return Api21.directoryKey(dir);
+            }
+            return dir.getCanonicalPath();
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class Api21 {
+        static ForkJoinPool createPool() {
+            // Listing is I/O bound, but more threads than this only make the storage seek more
+            int threadCount = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            return new ForkJoinPool(threadCount, p -> {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(p) {
+                    @Override
+                    protected void onStart() {
+                        super.onStart();
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    }
+                };
+                thread.setName("SMP scan " + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+        }
+
+        static void start(Object pool, Task task) {
+            ((ForkJoinPool) pool).execute(new ScanAction(task, null, new AtomicInteger(1)));
+        }
+
+        static void shutdown(Object pool) {
+            ((ForkJoinPool) pool).shutdownNow();
+        }
+
+        /**
+         * Lists dir with one stat per entry for its type, size and inode, where File takes one for each,
+         * and resolves a canonical path per directory.
+         */
+        static void scanDirectory(Task task, Directory dir, List<Directory> subdirs) {
+            String[] names = dir.file.list();
+            if (names == null) {
+                return;
+            }
+            for (String name : names) {
+                if (task.cancelled) {
+                    return;
+                }
+                File file = new File(dir.file, name);
+                StructStat stat;
+                try {
+                    // Follows symlinks, like File.isDirectory() did
+                    stat = Os.stat(file.getPath());
+                } catch (ErrnoException e) {
+                    // Dangling symlink or a file deleted meanwhile
+                    continue;
+                }
+                if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    task.addDirectory(dir, name, directoryKey(stat), subdirs);
+                } else if (OsConstants.S_ISREG(stat.st_mode)) {
+                    // st_mtime is in seconds, File.lastModified() has the precision FolderWatcher compares with
+                    task.addSong(dir, name, stat.st_size, file.lastModified(), true);
+                }
+            }
+        }
+
+        static Object directoryKey(File dir) {
+            try {
+                return directoryKey(Os.stat(dir.getPath()));
+            } catch (ErrnoException e) {
+                return null;
+            }
+        }
+
+        static Object directoryKey(StructStat stat) {
+            // Device and inode
+            return stat.st_dev + ":" + stat.st_ino;
+        }
+    }
+
+    /**
+     * Lists one directory and forks an action per subdirectory. The root action begins with no directory.
+     * pending counts the actions of the task that haven't ended, whichever ends last finishes the task.
+     * Nobody joins the actions, so none waits for its subdirectories. CountedCompleter does the same,
+     * but is API 24+.
+     */
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class ScanAction extends RecursiveAction {
+        private final Task task;
+        private final Directory dir;
+        private final AtomicInteger pending;
+
+        ScanAction(Task task, Directory dir, AtomicInteger pending) {
+            this.task = task;
+            this.dir = dir;
+            this.pending = pending;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Directory dir = this.dir == null ? task.begin() : this.dir;
+                if (dir != null) {
+                    List<Directory> subdirs = new ArrayList<>();
+                    task.scanDirectory(dir, subdirs);
+                    for (Directory subdir : subdirs) {
+                        pending.incrementAndGet();
+                        new ScanAction(task, subdir, pending).fork();
+                    }
+                }
+            } finally {
+                // Also if the listing threw, so that the task still finishes with what was listed
+                if (pending.decrementAndGet() == 0) {
+                    task.finish();
+                }
+            }
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    private static class Api26 {
+        /**
+         * Lists dir with one stat per entry, which gives its type, size and mtime at once.
+         */
+        static void scanDirectory(Task task, Directory dir, List<Directory> subdirs) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.file.toPath())) {
+                for (Path entry : stream) {
+                    if (task.cancelled) {
+                        return;
+                    }
+                    BasicFileAttributes attributes;
+                    try {
+                        // Follows symlinks, like File.isDirectory() did
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // Dangling symlink or a file deleted meanwhile
+                        continue;
+                    }
+                    String name = entry.getFileName().toString();
+                    if (attributes.isDirectory()) {
+                        task.addDirectory(dir, name, directoryKey(entry, attributes), subdirs);
+                    } else if (attributes.isRegularFile()) {
+                        task.addSong(dir, name, attributes.size(), attributes.lastModifiedTime().toMillis(), true);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException | SecurityException e) {
+                // Unreadable directory, keep what was listed
+            }
+        }
+
+        static Object directoryKey(File dir) throws IOException {
+            Path path = dir.toPath();
+            return directoryKey(path, Files.readAttributes(path, BasicFileAttributes.class));
+        }
+
+        static Object directoryKey(Path path, BasicFileAttributes attributes) {
+            // Device and inode
+            Object key = attributes.fileKey();
+            if (key != null) {
+                return key;
+            }
+            try {
+                return path.toRealPath().toString();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
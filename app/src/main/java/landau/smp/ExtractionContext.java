@@ -0,0 +1,28 @@
+package landau.smp;
+
+/**
+ * Per-thread state used while extracting metadata. CharsetDecoders and the parsers' buffers
+ * aren't thread-safe, so every thread that extracts metadata gets its own set of them.
+ */
+class ExtractionContext {
+    private static final ThreadLocal<ExtractionContext> contexts = new ThreadLocal<ExtractionContext>() {
+        @Override
+        protected ExtractionContext initialValue() {
+            return new ExtractionContext();
+        }
+    };
+
+    final FormatProbe formatProbe = new FormatProbe();
+    final ID3Extractor id3Extractor = new ID3Extractor();
+    final MP3DurationProbe mp3DurationProbe = new MP3DurationProbe();
+    final VorbisCommentExtractor vorbisCommentExtractor = new VorbisCommentExtractor();
+    final MP4Extractor mp4Extractor = new MP4Extractor();
+    final TextDecoder textDecoder = new TextDecoder();
+
+    private ExtractionContext() {
+    }
+
+    static ExtractionContext forCurrentThread() {
+        return contexts.get();
+    }
+}
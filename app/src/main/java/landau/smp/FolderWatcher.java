@@ -0,0 +1,316 @@
+package landau.smp;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Watches the directories of a played folder for files being added, replaced and deleted, and applies
+ * the changes to its SongTable, so that they don't need a rescan. Every directory has its own FileObserver,
+ * as inotify isn't recursive. Events are collected until the folder is quiet for a while, so that copying
+ * an album is a single update, and the changes are reported on the main thread.
+ * <p>
+ * A table that wasn't just scanned, e.g. restored from a QueueSnapshot, can be verified against the folder
+ * first. Differences are reported the same way.
+ */
+public class FolderWatcher {
+    // Changes are applied once there were no events for this long
+    private static final int kDebounceMs = 2000;
+    private static final int kMask = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+
+    public interface Listener {
+        /**
+         * Rows of files that were deleted or replaced, and rows of audio files that were added, in the order found.
+         */
+        void onChanged(int[] removedRows, int[] addedRows);
+    }
+
+    private final SongTable table;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor;
+    // By directory path. Guarded by itself, as stop() empties it on the main thread.
+    private final Map<String, Observer> observers = new HashMap<>();
+    // Paths of the entries that changed since the last update
+    private final Set<String> pending = new LinkedHashSet<>();
+    private final Runnable flush;
+    private volatile boolean stopped;
+
+    @SuppressWarnings("deprecation")  // FileObserver(File, int) is API 29+
+    private class Observer extends FileObserver {
+        private final String dir;
+
+        Observer(String dir) {
+            super(dir, kMask);
+            this.dir = dir;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            if (name == null || stopped) {
+                return;
+            }
+            synchronized (pending) {
+                pending.add(new File(dir, name).getPath());
+            }
+            mainHandler.removeCallbacks(flush);
+            mainHandler.postDelayed(flush, kDebounceMs);
+        }
+    }
+
+    /**
+     * Starts watching all directories of table, with verify, after comparing them with the table.
+     * Must be called on the main thread.
+     */
+    public FolderWatcher(SongTable table, boolean verify, Listener listener) {
+        this.table = table;
+        this.listener = listener;
+        executor = IoUtils.newSingleThreadExecutor("SMP folder watcher");
+        flush = () -> {
+            if (!stopped) {
+                executor.execute(this::update);
+            }
+        };
+        executor.execute(() -> {
+            // Without verify, changes made between the scan and this are missed until the folder is picked again
+            int count = table.getDirectoryCount();
+            for (int dir = 0; dir < count && !stopped; dir++) {
+                watch(table.getDirectoryPath(dir));
+            }
+            if (verify) {
+                verify(count);
+            }
+        });
+    }
+
+    /**
+     * Stops watching. The listener isn't called after this. Must be called on the main thread.
+     * <p>
+     * The directories are unwatched before this returns. FileObservers of the same path share one inotify
+     * watch, so a watcher started right after this would lose its watches to a stop that's still to come.
+     */
+    public void stop() {
+        stopped = true;
+        mainHandler.removeCallbacks(flush);
+        synchronized (observers) {
+            for (Observer observer : observers.values()) {
+                observer.stopWatching();
+            }
+            observers.clear();
+        }
+        executor.shutdown();
+    }
+
+    private void watch(String dir) {
+        synchronized (observers) {
+            if (!stopped && !observers.containsKey(dir)) {
+                Observer observer = new Observer(dir);
+                observer.startWatching();
+                observers.put(dir, observer);
+            }
+        }
+    }
+
+    private void unwatchTree(String dir) {
+        String prefix = dir.endsWith("/") ? dir : dir + "/";
+        synchronized (observers) {
+            Iterator<Map.Entry<String, Observer>> it = observers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Observer> entry = it.next();
+                if (entry.getKey().equals(dir) || entry.getKey().startsWith(prefix)) {
+                    entry.getValue().stopWatching();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void update() {
+        List<String> paths;
+        synchronized (pending) {
+            paths = new ArrayList<>(pending);
+            pending.clear();
+        }
+        List<Integer> removed = new ArrayList<>();
+        List<Integer> added = new ArrayList<>();
+        for (String path : paths) {
+            if (stopped) {
+                return;
+            }
+            File file = new File(path);
+            // Whatever was at path before is gone or replaced, unless it's a file that didn't change
+            int dir = table.findDirectory(path);
+            if (dir >= 0) {
+                for (int row : table.removeDirectory(dir)) {
+                    removed.add(row);
+                }
+                unwatchTree(path);
+            } else {
+                int parent = table.findDirectory(file.getParent());
+                int row = parent >= 0 ? table.findRow(parent, file.getName()) : -1;
+                if (row >= 0) {
+                    if (file.isFile() && file.length() == table.getFileSize(row)
+                            && file.lastModified() == table.getLastModified(row)) {
+                        continue;
+                    }
+                    table.remove(row);
+                    removed.add(row);
+                }
+            }
+            if (file.isDirectory()) {
+                addTree(file, added);
+            } else if (file.isFile()) {
+                int parent = table.findDirectory(file.getParent());
+                if (parent >= 0) {
+                    addFile(parent, file, added);
+                }
+            }
+        }
+        report(removed, added);
+    }
+
+    private void report(List<Integer> removed, List<Integer> added) {
+        int[] removedRows = toArray(removed, false);
+        // A file added and then removed again within the same update, e.g. in a directory that was moved
+        int[] addedRows = toArray(added, true);
+        if (removedRows.length == 0 && addedRows.length == 0) {
+            return;
+        }
+        mainHandler.post(() -> {
+            if (!stopped) {
+                listener.onChanged(removedRows, addedRows);
+            }
+        });
+    }
+
+    /**
+     * Compares the first dirCount directories of the table with the folder, and reports the differences.
+     */
+    private void verify(int dirCount) {
+        // Rows by directory and name, whatever is left after listing the directories is gone
+        Map<String, Integer> rows = new HashMap<>();
+        int size = table.size();
+        for (int i = 0; i < size; i++) {
+            if (!table.isRemoved(i)) {
+                rows.put(table.getDirectory(i) + "/" + table.getName(i), i);
+            }
+        }
+        List<Integer> removed = new ArrayList<>();
+        List<Integer> added = new ArrayList<>();
+        for (int dir = 0; dir < dirCount; dir++) {
+            if (stopped) {
+                return;
+            }
+            File[] files = new File(table.getDirectoryPath(dir)).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    if (table.findDirectory(f.getPath()) < 0) {
+                        addTree(f, added);
+                    }
+                    continue;
+                }
+                Integer row = rows.remove(dir + "/" + f.getName());
+                if (row != null) {
+                    if (f.length() == table.getFileSize(row) && f.lastModified() == table.getLastModified(row)) {
+                        continue;
+                    }
+                    table.remove(row);
+                    removed.add(row);
+                }
+                addFile(dir, f, added);
+            }
+        }
+        for (int row : rows.values()) {
+            table.remove(row);
+            removed.add(row);
+        }
+        report(removed, added);
+    }
+
+    /**
+     * Adds the files of a new directory tree, and watches its directories.
+     */
+    private void addTree(File root, List<Integer> added) {
+        int rootParent = table.findDirectory(root.getParent());
+        if (rootParent < 0) {
+            return;
+        }
+        // Canonical paths, to stop at symlink cycles
+        Set<String> visited = new HashSet<>();
+        ArrayDeque<File> pendingDirs = new ArrayDeque<>();
+        ArrayDeque<Integer> pendingIds = new ArrayDeque<>();
+        pendingDirs.push(root);
+        pendingIds.push(table.addDirectory(rootParent, root.getName()));
+        while (!pendingDirs.isEmpty() && !stopped) {
+            File dir = pendingDirs.pop();
+            int id = pendingIds.pop();
+            try {
+                if (!visited.add(dir.getCanonicalPath())) {
+                    // Reached again through a symlink
+                    continue;
+                }
+            } catch (IOException e) {
+                continue;
+            }
+            watch(dir.getPath());
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    pendingDirs.push(f);
+                    pendingIds.push(table.addDirectory(id, f.getName()));
+                } else {
+                    addFile(id, f, added);
+                }
+            }
+        }
+    }
+
+    private void addFile(int dir, File file, List<Integer> added) {
+        if (table.findRow(dir, file.getName()) >= 0) {
+            // Already added within this update
+            return;
+        }
+        // Covers, playlists and such are left out, like when scanning. A file that can't be read yet is
+        // added on its next event, e.g. when it's closed after writing.
+        try {
+            if (!ExtractionContext.forCurrentThread().formatProbe.isAudio(file.getPath())) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        added.add(table.add(dir, file.getName(), file.length(), file.lastModified()));
+    }
+
+    private int[] toArray(List<Integer> rows, boolean skipRemoved) {
+        int[] result = new int[rows.size()];
+        int count = 0;
+        for (int row : rows) {
+            if (!skipRemoved || !table.isRemoved(row)) {
+                result[count++] = row;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
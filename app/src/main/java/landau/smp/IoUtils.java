@@ -0,0 +1,122 @@
+package landau.smp;
+
+import android.os.Process;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Background threads, and the file layout of MetadataCache and QueueSnapshot: big endian data followed by
+ * a CRC32 of it. Strings are a length followed by UTF-8 bytes.
+ */
+final class IoUtils {
+    private static final int kMinFileSize = 16;
+
+    private IoUtils() {
+    }
+
+    /**
+     * Returns an executor with one background priority daemon thread, which exits when idle.
+     */
+    static ThreadPoolExecutor newSingleThreadExecutor(String name) {
+        return newExecutor(name, 1);
+    }
+
+    /**
+     * Returns an executor with threadCount background priority daemon threads, which exit when idle.
+     */
+    static ThreadPoolExecutor newExecutor(String name, int threadCount) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Reads file and returns its data without the CRC, or null if it's missing, its size is out of range
+     * or the CRC doesn't match.
+     */
+    static DataInputStream readChecked(File file, int maxSize) throws IOException {
+        long length = file.length();
+        if (length < kMinFileSize || length > maxSize) {
+            return null;
+        }
+        byte[] data = new byte[(int) length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if ((int) crc.getValue() != readIntBe(data, data.length - 4)) {
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+    }
+
+    /**
+     * Writes data followed by its CRC to file, creating its directory if needed.
+     */
+    static void writeChecked(File file, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        // Write a temporary file and rename it over the old one, so a crash never leaves a partial file
+        File tmpFile = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.write(data);
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            stream.getFD().sync();
+        }
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw new IOException("Can't rename " + tmpFile);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > in.available()) {
+            throw new IOException("Bad string length " + len);
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int readIntBe(byte[] array, int offset) {
+        return ((array[offset] & 0xff) << 24) |
+                ((array[offset + 1] & 0xff) << 16) |
+                ((array[offset + 2] & 0xff) << 8) |
+                (array[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,45 @@
+package landau.smp;
+
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads from a MediaDataSource, so that metadata can be parsed from the same source MediaPlayer plays.
+ */
+@RequiresApi(Build.VERSION_CODES.M)
+public class MediaDataSourceReader implements PositionedReader {
+    private final MediaDataSource source;
+
+    public MediaDataSourceReader(MediaDataSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public long size() throws IOException {
+        // -1 if unknown, which parsers treat as an empty source
+        return Math.max(0, source.getSize());
+    }
+
+    @Override
+    public void readFully(long position, byte[] dst, int offset, int len) throws IOException {
+        while (len > 0) {
+            int n = source.readAt(position, dst, offset, len);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            position += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
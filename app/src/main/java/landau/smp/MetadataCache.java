@@ -0,0 +1,224 @@
+package landau.smp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Metadata of the songs in a played folder, persisted so that reopening the folder needs no tag parsing.
+ * There's one file per folder, loaded in bulk when the folder opens and rewritten in the background
+ * once all its songs are extracted. A record is used only if the file's size and mtime still match.
+ * <p>
+ * Failures are recorded too, so that broken and non-audio files don't cost a probe, a parse or a
+ * MediaPlayer attempt on every scan. Files that aren't audio or can't be played are excluded from
+ * the song list, but stay in the SongTable, so their records are kept.
+ * <p>
+ * File format, big endian:
+ * "SMPM", version, assumed charset ("" for auto), record count, records, CRC32 of everything before it.
+ * Record: path, size, mtime, duration in ms, failure (Song.Failure ordinal),
+ * flags (bit 0 - artist, 1 - album, 2 - title present), present strings.
+ * Strings are a length followed by UTF-8 bytes. A file with a bad CRC or version is ignored, and so is
+ * one written with another assumed charset, as its strings were decoded with it.
+ */
+public class MetadataCache {
+    private static final String TAG = MetadataCache.class.getSimpleName();
+
+    private static final int kMagic = ('S' << 24) | ('M' << 16) | ('P' << 8) | 'M';
+    private static final int kVersion = 3;
+    private static final int kMaxFileSize = 64 * 1024 * 1024;
+    private static final Song.Failure[] kFailures = Song.Failure.values();
+
+    // Writes are rare and small, one thread for all folders keeps them ordered
+    private static final ThreadPoolExecutor writer = IoUtils.newSingleThreadExecutor("SMP metadata cache");
+
+    private static class Entry {
+        long size;
+        long lastModified;
+        int durationMs;
+        Song.Failure failure;
+        String artist, album, title;
+    }
+
+    private final File file;
+    private Map<String, Entry> entries = new HashMap<>();
+    // Songs restored from the cache. If it's all of them and all entries, and no failures were added,
+    // there's nothing new to write. After a write, the entries written.
+    private int hits;
+    private boolean dirty;
+    // SongTable.getModificationCount() of the table last written, -1 if there was no write
+    private int savedModifications = -1;
+
+    private MetadataCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the cache of the given folder, empty until read().
+     */
+    public static MetadataCache create(Context context, String folder) {
+        File dir = new File(context.getCacheDir(), "metadata");
+        return new MetadataCache(new File(dir, MetadataUtils.sha1Hex(folder)));
+    }
+
+    /**
+     * Reads the records from disk. Leaves the cache empty if there's none, it can't be read, or its strings
+     * were decoded with another assumed charset than the one given.
+     */
+    public synchronized void read(Charset assumedCharset) {
+        try {
+            readFile(assumedCharset);
+        } catch (IOException e) {
+            // Missing, truncated or corrupt, start from scratch
+            entries.clear();
+        }
+    }
+
+    /**
+     * Fills in the song's metadata from its record, if there's one and the file hasn't changed since.
+     * Returns true if it did. Can be called from any thread.
+     */
+    public synchronized boolean restore(Song song) {
+        Entry entry = entries.get(song.getFilename());
+        if (entry == null || entry.size != song.getFileSize() || entry.lastModified != song.getLastModified()) {
+            return false;
+        }
+        song.setMetadata(entry.artist, entry.album, entry.title, entry.durationMs, entry.failure);
+        hits++;
+        return true;
+    }
+
+    /**
+     * Marks a song that is left out of the song list with failure. Can be called from any thread.
+     */
+    public synchronized void exclude(Song song, Song.Failure failure) {
+        if (song.getFailure() != failure) {
+            song.setFailure(failure);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Replaces the cache with records for all songs of the table whose metadata is extracted or that failed,
+     * unless nothing changed. The file is written in the background. Must be called on the main thread.
+     */
+    public synchronized void saveAsync(SongTable table) {
+        int size = table.size();
+        int modifications = table.getModificationCount();
+        boolean unchanged = savedModifications >= 0 ? modifications == savedModifications : hits == size;
+        if (!dirty && unchanged && hits == entries.size()) {
+            return;
+        }
+        dirty = false;
+        writer.execute(() -> {
+            Map<String, Entry> written;
+            try {
+                written = write(table, size);
+            } catch (IOException e) {
+                Log.w(TAG, "Can't write " + file, e);
+                synchronized (this) {
+                    dirty = true;
+                }
+                return;
+            }
+            synchronized (this) {
+                entries = written;
+                hits = written.size();
+                savedModifications = modifications;
+            }
+        });
+    }
+
+    private void readFile(Charset assumedCharset) throws IOException {
+        DataInputStream in = IoUtils.readChecked(file, kMaxFileSize);
+        if (in == null || in.readInt() != kMagic || in.readInt() != kVersion) {
+            return;
+        }
+        if (!IoUtils.readString(in).equals(assumedCharset == null ? "" : assumedCharset.name())) {
+            return;
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String path = IoUtils.readString(in);
+            Entry entry = new Entry();
+            entry.size = in.readLong();
+            entry.lastModified = in.readLong();
+            entry.durationMs = in.readInt();
+            int failure = in.readByte();
+            if (failure < 0 || failure >= kFailures.length) {
+                throw new IOException("Bad failure " + failure);
+            }
+            entry.failure = kFailures[failure];
+            int flags = in.readByte();
+            entry.artist = (flags & 1) != 0 ? IoUtils.readString(in) : null;
+            entry.album = (flags & 2) != 0 ? IoUtils.readString(in) : null;
+            entry.title = (flags & 4) != 0 ? IoUtils.readString(in) : null;
+            entries.put(path, entry);
+        }
+    }
+
+    /**
+     * Writes the records and returns them.
+     */
+    private Map<String, Entry> write(SongTable table, int size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(kMagic);
+        out.writeInt(kVersion);
+        Charset assumedCharset = table.getAssumedCharset();
+        IoUtils.writeString(out, assumedCharset == null ? "" : assumedCharset.name());
+        // Count, patched below
+        int countOffset = out.size();
+        out.writeInt(0);
+        Map<String, Entry> written = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Song song = table.get(i);
+            if (table.isRemoved(i) || (!song.isExtracted() && song.getFailure() == Song.Failure.NONE)) {
+                continue;
+            }
+            Entry entry = new Entry();
+            String path = song.getFilename();
+            entry.size = song.getFileSize();
+            entry.lastModified = song.getLastModified();
+            entry.durationMs = song.getDuration();
+            entry.failure = song.getFailure();
+            entry.artist = song.getArtist();
+            entry.album = song.getAlbum();
+            entry.title = song.getTitle();
+            IoUtils.writeString(out, path);
+            out.writeLong(entry.size);
+            out.writeLong(entry.lastModified);
+            out.writeInt(entry.durationMs);
+            out.writeByte(entry.failure.ordinal());
+            out.writeByte((entry.artist != null ? 1 : 0) | (entry.album != null ? 2 : 0)
+                    | (entry.title != null ? 4 : 0));
+            if (entry.artist != null) {
+                IoUtils.writeString(out, entry.artist);
+            }
+            if (entry.album != null) {
+                IoUtils.writeString(out, entry.album);
+            }
+            if (entry.title != null) {
+                IoUtils.writeString(out, entry.title);
+            }
+            written.put(path, entry);
+        }
+        int count = written.size();
+        out.flush();
+        byte[] data = bytes.toByteArray();
+        data[countOffset] = (byte) (count >>> 24);
+        data[countOffset + 1] = (byte) (count >>> 16);
+        data[countOffset + 2] = (byte) (count >>> 8);
+        data[countOffset + 3] = (byte) count;
+        IoUtils.writeChecked(file, data);
+        return written;
+    }
+}
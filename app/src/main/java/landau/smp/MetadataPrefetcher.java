@@ -0,0 +1,72 @@
+package landau.smp;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts metadata of the songs around the current one on a background thread, nearest first, so that
+ * a track change finds it already there. The batch extraction of the whole list goes in list order and
+ * may take a while to reach the current song, this only looks at a small window around it.
+ */
+public class MetadataPrefetcher {
+    // Songs after and before the current one, in play order
+    private static final int kAhead = 4;
+    private static final int kBehind = 2;
+
+    private final ThreadPoolExecutor executor;
+    // Incremented on every prefetch(), so that a window the player has moved away from is abandoned
+    private final AtomicInteger generation = new AtomicInteger();
+
+    public MetadataPrefetcher() {
+        executor = IoUtils.newSingleThreadExecutor("SMP prefetch");
+    }
+
+    /**
+     * Starts extracting the songs around the current one of queue, in the order they will be played, replacing
+     * the previous window. Songs the queue removed are skipped, without making it drop them.
+     * Must be called on the main thread.
+     */
+    public void prefetch(PlayQueue queue) {
+        int size = queue.size();
+        int windowSize = Math.min(size, 1 + kAhead + kBehind);
+        Song[] window = new Song[windowSize];
+        int count = 0;
+        // Current, next, previous, 2nd next, 2nd previous... Playback wraps around, and so does the window.
+        for (int distance = 0; count < windowSize && distance <= Math.max(kAhead, kBehind); distance++) {
+            if (distance <= kAhead) {
+                count = addIfNeeded(window, count, queue.getRelative(distance));
+            }
+            if (distance != 0 && distance <= kBehind && count < windowSize) {
+                count = addIfNeeded(window, count, queue.getRelative(-distance));
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        int gen = generation.incrementAndGet();
+        int finalCount = count;
+        executor.execute(() -> {
+            for (int i = 0; i < finalCount && generation.get() == gen; i++) {
+                window[i].extractMetadata();
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static int addIfNeeded(Song[] window, int count, Song song) {
+        if (song.isExtracted()) {
+            return count;
+        }
+        // A short list wraps onto itself
+        for (int i = 0; i < count; i++) {
+            if (window[i].equals(song)) {
+                return count;
+            }
+        }
+        window[count] = song;
+        return count + 1;
+    }
+}
@@ -0,0 +1,153 @@
+package landau.smp;
+
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Natural, locale aware order of file names and paths: runs of digits compare as numbers, so "2 - Track" comes
+ * before "10 - Track", and the text between them by the Collator of the current locale. Paths compare component
+ * by component, so a directory's files stay together.
+ * <p>
+ * A Collator is too slow to call on every comparison of a large sort, so every string gets a byte key once,
+ * and keys compare bytewise. Key of a component: segments, then kEndComponent. A digit run is kDigits, its length
+ * without leading zeros, and the digits. Text is kText, its collation key escaped to not contain 0, and 0.
+ * Not thread safe, use an instance per thread.
+ */
+public class NaturalOrder {
+    private static final int kEndComponent = 1;
+    private static final int kDigits = 2;
+    private static final int kText = 3;
+    private static final int kMaxDigits = 255;
+
+    private final Collator collator = Collator.getInstance();
+    private final ByteArrayOutputStream key = new ByteArrayOutputStream();
+    // Escaped collation keys of text segments, which repeat a lot, e.g. extensions and " - "
+    private final Map<String, byte[]> textKeys = new HashMap<>();
+
+    /**
+     * Returns the sort key of a path or a file name.
+     */
+    public byte[] getKey(String path) {
+        key.reset();
+        int length = path.length();
+        int i = 0;
+        while (i < length) {
+            int start = i;
+            char c = path.charAt(i);
+            if (c == '/') {
+                key.write(kEndComponent);
+                i++;
+            } else if (isDigit(c)) {
+                while (i < length && isDigit(path.charAt(i))) {
+                    i++;
+                }
+                while (start < i - 1 && path.charAt(start) == '0') {
+                    start++;
+                }
+                // Longer numbers are rare enough to compare by their first digits
+                int digits = Math.min(i - start, kMaxDigits);
+                key.write(kDigits);
+                key.write(digits);
+                for (int j = start; j < start + digits; j++) {
+                    key.write(path.charAt(j));
+                }
+            } else {
+                while (i < length && path.charAt(i) != '/' && !isDigit(path.charAt(i))) {
+                    i++;
+                }
+                key.write(kText);
+                String text = path.substring(start, i);
+                byte[] textKey = textKeys.get(text);
+                if (textKey == null) {
+                    textKey = getTextKey(text);
+                    textKeys.put(text, textKey);
+                }
+                key.write(textKey, 0, textKey.length);
+            }
+        }
+        key.write(kEndComponent);
+        return key.toByteArray();
+    }
+
+    private byte[] getTextKey(String text) {
+        ByteArrayOutputStream textKey = new ByteArrayOutputStream();
+        for (byte b : collator.getCollationKey(text).toByteArray()) {
+            // 0 -> 1 1, 1 -> 1 2, so that the terminating 0 is smaller than any content
+            if (b == 0 || b == 1) {
+                textKey.write(1);
+                textKey.write(b + 1);
+            } else {
+                textKey.write(b);
+            }
+        }
+        textKey.write(0);
+        return textKey.toByteArray();
+    }
+
+    /**
+     * Returns the sort key of a file in a directory, given the key of the directory's path.
+     * Saves building the directory's part for each of its files.
+     */
+    public byte[] getKey(byte[] directoryKey, String name) {
+        byte[] nameKey = getKey(name);
+        byte[] result = Arrays.copyOf(directoryKey, directoryKey.length + nameKey.length);
+        System.arraycopy(nameKey, 0, result, directoryKey.length, nameKey.length);
+        return result;
+    }
+
+    /**
+     * Compares keys returned by getKey().
+     */
+    public static int compare(byte[] lhs, byte[] rhs) {
+        int length = Math.min(lhs.length, rhs.length);
+        for (int i = 0; i < length; i++) {
+            int result = (lhs[i] & 0xff) - (rhs[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return lhs.length - rhs.length;
+    }
+
+    /**
+     * Sorts strings, ties by plain string order.
+     */
+    public void sort(String[] strings) {
+        byte[][] keys = new byte[strings.length][];
+        Integer[] positions = new Integer[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            keys[i] = getKey(strings[i]);
+            positions[i] = i;
+        }
+        String[] unsorted = strings.clone();
+        sort(positions, (lhs, rhs) -> {
+            int result = compare(keys[lhs], keys[rhs]);
+            return result != 0 ? result : unsorted[lhs].compareTo(unsorted[rhs]);
+        });
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = unsorted[positions[i]];
+        }
+    }
+
+    /**
+     * Sorts array, in parallel where available.
+     */
+    public static <T> void sort(T[] array, Comparator<? super T> comparator) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // Sorts small arrays sequentially by itself
+            Arrays.parallelSort(array, comparator);
+        } else {
+            Arrays.sort(array, comparator);
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,28 @@
+package landau.smp;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a file opened by a content provider, e.g. from ContentResolver.openFileDescriptor().
+ * Closing the reader closes the ParcelFileDescriptor too.
+ */
+public class ParcelFileDescriptorReader extends FileChannelReader {
+    private final ParcelFileDescriptor pfd;
+
+    public ParcelFileDescriptorReader(ParcelFileDescriptor pfd) {
+        super(new FileInputStream(pfd.getFileDescriptor()));
+        this.pfd = pfd;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            pfd.close();
+        }
+    }
+}
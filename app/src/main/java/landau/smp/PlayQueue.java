@@ -0,0 +1,137 @@
+package landau.smp;
+
+import java.util.BitSet;
+
+/**
+ * A SongList and the position of the current song in it. Songs that turn out to be unplayable are removed by
+ * marking their positions in a BitSet, which is O(1), instead of shifting the list on every removal. Moving
+ * the cursor skips them, and they're dropped from the list all at once the next time the list or an index
+ * into it is needed, so a folder of thousands of bad files takes a single pass.
+ * Must be used on the main thread only.
+ */
+public class PlayQueue {
+    private final SongList songs;
+    // Positions of removed songs that are still in songs
+    private final BitSet removed = new BitSet();
+    private int removedCount;
+    private int current;
+
+    /**
+     * Starts at index, or at the first song if it's out of range.
+     */
+    public PlayQueue(SongList songs, int index) {
+        this.songs = songs;
+        current = index >= 0 && index < songs.size() ? index : 0;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        return songs.size() - removedCount;
+    }
+
+    /**
+     * The queue must not be empty.
+     */
+    public Song getCurrent() {
+        return songs.get(current);
+    }
+
+    /**
+     * Returns the song offset songs after the current one, or before it if offset is negative, wrapping around
+     * like next() and previous(). Removed songs are skipped, not dropped, so this is cheap enough for every track
+     * change. The queue must not be empty.
+     */
+    public Song getRelative(int offset) {
+        int position = current;
+        for (; offset > 0; offset--) {
+            position = nextPosition(position);
+        }
+        for (; offset < 0; offset++) {
+            position = previousPosition(position);
+        }
+        return songs.get(position);
+    }
+
+    /**
+     * Returns the songs, without the removed ones.
+     */
+    public SongList getSongs() {
+        compact();
+        return songs;
+    }
+
+    /**
+     * Returns the index of the current song in getSongs(). It's what a scan of the same folder gives, as removed
+     * songs are left out of the scan too, so it can be saved across restarts.
+     */
+    public int getIndex() {
+        compact();
+        return current;
+    }
+
+    /**
+     * Sets the current song by its index in getSongs(), e.g. after editing them.
+     */
+    public void setIndex(int index) {
+        compact();
+        current = index >= 0 && index < songs.size() ? index : 0;
+    }
+
+    /**
+     * Moves to the next song, after the last one to the first.
+     */
+    public void next() {
+        if (isEmpty()) {
+            return;
+        }
+        current = nextPosition(current);
+    }
+
+    /**
+     * Moves to the previous song, before the first one to the last.
+     */
+    public void previous() {
+        if (isEmpty()) {
+            return;
+        }
+        current = previousPosition(current);
+    }
+
+    /**
+     * Removes the current song and moves to the next one. Returns the removed song.
+     */
+    public Song removeCurrent() {
+        Song song = songs.get(current);
+        removed.set(current);
+        removedCount++;
+        next();
+        return song;
+    }
+
+    private int nextPosition(int position) {
+        int next = removed.nextClearBit(position + 1);
+        return next < songs.size() ? next : removed.nextClearBit(0);
+    }
+
+    private int previousPosition(int position) {
+        do {
+            position = (position == 0 ? songs.size() : position) - 1;
+        } while (removed.get(position));
+        return position;
+    }
+
+    private void compact() {
+        if (removedCount == 0) {
+            return;
+        }
+        // The current song is removed only if all are
+        int newCurrent = isEmpty() ? 0 : current - removed.get(0, current).cardinality();
+        songs.removeIndices(removed);
+        removed.clear();
+        removedCount = 0;
+        current = newCurrent;
+    }
+}
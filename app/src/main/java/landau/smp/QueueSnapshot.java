@@ -0,0 +1,224 @@
+package landau.smp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * The play queue of a folder as it was last played: its SongTable with metadata, the play order, the current
+ * song and position. Saved per recent folder, so that reopening one, at startup or from the recents, resumes
+ * with a single read instead of a scan. The folder may have changed since, so the restored list is checked
+ * against it in the background, see FolderWatcher.
+ * <p>
+ * File format, big endian:
+ * "SMPQ", version, assumed charset ("" for auto), shuffled, directories, rows, play order, current song,
+ * position in ms, CRC32 of everything before it.
+ * Directory: parent, name.
+ * Row: directory, name, size, mtime, duration in ms, state (bit 0 - extracted, 1 - removed),
+ * failure (Song.Failure ordinal), flags (bit 0 - artist, 1 - album, 2 - title present), present strings.
+ * Play order: count, rows. Strings are a length followed by UTF-8 bytes.
+ * A snapshot with a bad CRC or version, or another charset or shuffle setting is ignored.
+ */
+public class QueueSnapshot {
+    private static final String TAG = QueueSnapshot.class.getSimpleName();
+
+    private static final int kMagic = ('S' << 24) | ('M' << 16) | ('P' << 8) | 'Q';
+    private static final int kVersion = 1;
+    private static final int kMaxFileSize = 128 * 1024 * 1024;
+    private static final Song.Failure[] kFailures = Song.Failure.values();
+
+    // Snapshots of different folders are written in order, by one thread
+    private static final ThreadPoolExecutor writer = IoUtils.newSingleThreadExecutor("SMP queue snapshot");
+
+    public final SongList songs;
+    public final int currentSong;
+    public final int position;
+
+    private QueueSnapshot(SongList songs, int currentSong, int position) {
+        this.songs = songs;
+        this.currentSong = currentSong;
+        this.position = position;
+    }
+
+    /**
+     * Reads the snapshot of folder. Returns null if there's none, it can't be read, or it was taken with
+     * another assumed charset or shuffle setting.
+     */
+    public static QueueSnapshot read(Context context, String folder, Charset assumedCharset, boolean shuffled) {
+        File file = getFile(context, folder);
+        try {
+            DataInputStream in = IoUtils.readChecked(file, kMaxFileSize);
+            if (in == null || in.readInt() != kMagic || in.readInt() != kVersion) {
+                return null;
+            }
+            String charsetName = IoUtils.readString(in);
+            if (!charsetName.equals(assumedCharset == null ? "" : assumedCharset.name())
+                    || in.readBoolean() != shuffled) {
+                return null;
+            }
+            SongTable table = new SongTable(assumedCharset);
+            int dirCount = in.readInt();
+            for (int dir = 0; dir < dirCount; dir++) {
+                int parent = in.readInt();
+                if (parent < -1 || parent >= dir) {
+                    throw new IOException("Bad parent " + parent);
+                }
+                table.addDirectory(parent, IoUtils.readString(in));
+            }
+            int rowCount = in.readInt();
+            for (int i = 0; i < rowCount; i++) {
+                int dir = in.readInt();
+                if (dir < 0 || dir >= dirCount) {
+                    throw new IOException("Bad directory " + dir);
+                }
+                int row = table.add(dir, IoUtils.readString(in), in.readLong(), in.readLong());
+                int durationMs = in.readInt();
+                int state = in.readByte();
+                int failure = in.readByte();
+                if (failure < 0 || failure >= kFailures.length) {
+                    throw new IOException("Bad failure " + failure);
+                }
+                int flags = in.readByte();
+                String artist = (flags & 1) != 0 ? IoUtils.readString(in) : null;
+                String album = (flags & 2) != 0 ? IoUtils.readString(in) : null;
+                String title = (flags & 4) != 0 ? IoUtils.readString(in) : null;
+                if ((state & 1) != 0) {
+                    table.setMetadata(row, artist, album, title, durationMs, kFailures[failure]);
+                } else {
+                    table.setFailure(row, kFailures[failure]);
+                }
+                if ((state & 2) != 0) {
+                    table.remove(row);
+                }
+            }
+            SongList songs = new SongList(table);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int row = in.readInt();
+                if (row < 0 || row >= rowCount) {
+                    throw new IOException("Bad row " + row);
+                }
+                songs.addRow(row);
+            }
+            int currentSong = in.readInt();
+            int position = in.readInt();
+            if (currentSong < 0 || currentSong >= Math.max(1, count)) {
+                currentSong = 0;
+            }
+            return new QueueSnapshot(songs, currentSong, position);
+        } catch (IOException e) {
+            // Truncated or corrupt, scan instead
+            Log.w(TAG, "Can't read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the snapshot of folder in the background. The play order is copied here, the table is read
+     * when writing. Must be called on the main thread.
+     */
+    public static void saveAsync(Context context, String folder, SongList songs, boolean shuffled,
+                                 int currentSong, int position) {
+        File file = getFile(context, folder);
+        SongTable table = songs.getTable();
+        int[] order = new int[songs.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = songs.getRow(i);
+        }
+        int rowCount = table.size();
+        writer.execute(() -> {
+            try {
+                write(file, table, rowCount, order, shuffled, currentSong, position);
+            } catch (IOException e) {
+                Log.w(TAG, "Can't write " + file, e);
+            }
+        });
+    }
+
+    /**
+     * Deletes the snapshots of all folders but those given, in the background.
+     */
+    public static void prune(Context context, Collection<String> keepFolders) {
+        File dir = getFile(context, "").getParentFile();
+        Set<String> keep = new HashSet<>();
+        for (String folder : keepFolders) {
+            keep.add(getFile(context, folder).getName());
+        }
+        writer.execute(() -> {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File f : files) {
+                if (!keep.contains(f.getName())) {
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+                }
+            }
+        });
+    }
+
+    private static File getFile(Context context, String folder) {
+        return new File(new File(context.getFilesDir(), "queues"), MetadataUtils.sha1Hex(folder));
+    }
+
+    private static void write(File file, SongTable table, int rowCount, int[] order, boolean shuffled,
+                              int currentSong, int position) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(kMagic);
+        out.writeInt(kVersion);
+        Charset assumedCharset = table.getAssumedCharset();
+        IoUtils.writeString(out, assumedCharset == null ? "" : assumedCharset.name());
+        out.writeBoolean(shuffled);
+        int dirCount = table.getDirectoryCount();
+        out.writeInt(dirCount);
+        for (int dir = 0; dir < dirCount; dir++) {
+            out.writeInt(table.getDirectoryParent(dir));
+            IoUtils.writeString(out, table.getDirectoryName(dir));
+        }
+        out.writeInt(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            Song song = table.get(i);
+            String artist = song.getArtist();
+            String album = song.getAlbum();
+            String title = song.getTitle();
+            out.writeInt(table.getDirectory(i));
+            IoUtils.writeString(out, table.getName(i));
+            out.writeLong(song.getFileSize());
+            out.writeLong(song.getLastModified());
+            out.writeInt(song.getDuration());
+            out.writeByte((song.isExtracted() ? 1 : 0) | (table.isRemoved(i) ? 2 : 0));
+            out.writeByte(song.getFailure().ordinal());
+            out.writeByte((artist != null ? 1 : 0) | (album != null ? 2 : 0) | (title != null ? 4 : 0));
+            if (artist != null) {
+                IoUtils.writeString(out, artist);
+            }
+            if (album != null) {
+                IoUtils.writeString(out, album);
+            }
+            if (title != null) {
+                IoUtils.writeString(out, title);
+            }
+        }
+        out.writeInt(order.length);
+        for (int row : order) {
+            out.writeInt(row);
+        }
+        out.writeInt(currentSong);
+        out.writeInt(position);
+        out.flush();
+        byte[] data = bytes.toByteArray();
+        IoUtils.writeChecked(file, data);
+    }
+}
@@ -30,22 +30,22 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 
-import java.io.File;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.List;
 import java.util.Random;
 
 public class SMPActivity extends Activity {
     static final String TAG = SMPActivity.class.getSimpleName();
 
     private SMPService service;
+    private SMPService.SongChangeNotification songChangeNotification;
     private SharedPreferences prefs;
     private GestureDetector gestureDetector;
     private final Handler handler = new Handler();
+    private DirectoryScanner directoryScanner;
+    private DirectoryScanner.Task scanTask;
     private SeekBar seekBar;
     private TextView timeLabel;
     private final Runnable seekbarUpdater = new Runnable() {
@@ -123,6 +123,12 @@ public class SMPActivity extends Activity {
 
     @Override
     protected void onDestroy() {
+        if (scanTask != null) {
+            scanTask.cancel();
+        }
+        if (directoryScanner != null) {
+            directoryScanner.shutdown();
+        }
         super.onDestroy();
     }
 
@@ -199,7 +205,7 @@ public class SMPActivity extends Activity {
     private final ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder binder) {
-            SMPService.SongChangeNotification onchange = new SMPService.SongChangeNotification() {
+            songChangeNotification = new SMPService.SongChangeNotification() {
                 @Override
                 public void onNextSong(Song s) {
                     SMPActivity.this.onNextSong(s);
@@ -222,9 +228,11 @@ public class SMPActivity extends Activity {
                     path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath();
                     prefs.edit().putString("state_lastPlayFolder", path).apply();
                 }
-                service.init(getSongList(path), onchange);
+                if (scanTask == null) {
+                    scan(path, false);
+                }
             } else {
-                service.connect(onchange);
+                service.connect(songChangeNotification);
             }
             updatePlayButtonText();
         }
@@ -245,8 +253,8 @@ public class SMPActivity extends Activity {
 
     private void updateTimeLabel() {
         if (service != null) {
-            timeLabel.setText(String.format("%s / %s", MetadataUtils.formatTime(service.getCurrentTime() / 1000 * 1000),
-                    MetadataUtils.formatTime(service.getDuration())));
+            timeLabel.setText(String.format("%s / %s", StringUtils.formatTime(service.getCurrentTime() / 1000 * 1000),
+                    StringUtils.formatTime(service.getDuration())));
         }
     }
 
@@ -280,27 +288,26 @@ public class SMPActivity extends Activity {
     }
 
 
-    private void getSongListImpl(List<Song> result, File root) {
-        String assumedEncoding = prefs.getString("pref_assumedEncoding", "windows-1251");
-        CharsetDecoder decoder = Charset.forName(assumedEncoding).newDecoder();
-        File[] files = root.listFiles();
-        if (files == null) {
-            if (!root.isDirectory()) {
-                result.add(new Song(root.getAbsolutePath(), decoder));
-            }
-            return;
+    /**
+     * Lists path in the background, then gives the songs to the service, and with play, starts playing.
+     * If the service is already playing something, playback starts as soon as the first song is found.
+     * Replaces a scan that is still running.
+     */
+    @SuppressLint("SetTextI18n")
+    private void scan(String path, boolean play) {
+        if (scanTask != null) {
+            scanTask.cancel();
         }
-        for (File f : files) {
-            if (f.isDirectory()) {
-                getSongListImpl(result, f);
-            } else {
-                result.add(new Song(f.getAbsolutePath(), decoder));
-            }
+        if (directoryScanner == null) {
+            directoryScanner = new DirectoryScanner();
         }
-    }
-    private List<Song> getSongList(String path) {
-        List<Song> songs = new ArrayList<>();
-        getSongListImpl(songs, new File(path));
+        if (service == null || service.getState() == SMPService.State.INVALID) {
+            ((TextView)findViewById(R.id.lblTitle)).setText("Scanning...");
+        }
+        String assumedEncoding = prefs.getString("pref_assumedEncoding", "windows-1251");
+        // "auto" guesses the charset for every string separately
+        Charset charset = assumedEncoding.equals("auto") ? null : Charset.forName(assumedEncoding);
+        Random shuffle = null;
         if (prefs.getBoolean("pref_shuffle", false)) {
             long seed;
             if (!prefs.contains("state_lastShuffleSeed")) {
@@ -309,12 +316,75 @@ public class SMPActivity extends Activity {
             } else {
                 seed = prefs.getLong("state_lastShuffleSeed", 0);
             }
-            Collections.shuffle(songs, new Random(seed));
-        } else {
-            //noinspection ComparatorCombinators (not available in API 16)
-            Collections.sort(songs, (lhs, rhs) -> lhs.getFilename().compareTo(rhs.getFilename()));
-        }
-        return songs;
+            shuffle = new Random(seed);
+        }
+        // Streaming starts at the first song, so not when resuming at state_lastPlayedSong
+        boolean stream = play && service != null && service.getState() != SMPService.State.INVALID;
+        scanTask = directoryScanner.start(this, path, new SongTable(charset), shuffle, stream,
+                new DirectoryScanner.Listener() {
+                    private boolean streaming;
+
+                    @Override
+                    public void onFirstSong(SongList songs, MetadataCache metadataCache) {
+                        if (service == null || service.getState() == SMPService.State.INVALID) {
+                            return;
+                        }
+                        service.setPartialSongList(songs, metadataCache);
+                        service.playpause();
+                        streaming = true;
+                    }
+
+                    @Override
+                    public void onFinished(SongList songs, MetadataCache metadataCache) {
+                        scanTask = null;
+                        if (service == null) {
+                            return;
+                        }
+                        if (streaming && service.getState() != SMPService.State.INVALID) {
+                            service.completeSongList(songs);
+                            return;
+                        }
+                        if (service.getState() == SMPService.State.INVALID) {
+                            service.init(songs, metadataCache, songChangeNotification);
+                        } else {
+                            service.setSongList(songs, metadataCache);
+                        }
+                        if (songs.isEmpty()) {
+                            onNextSong(null);
+                        } else if (play) {
+                            service.playpause();
+                        }
+                    }
+
+                    @Override
+                    public void onSnapshot(QueueSnapshot snapshot, MetadataCache metadataCache) {
+                        scanTask = null;
+                        if (service == null) {
+                            return;
+                        }
+                        boolean rememberPosition = !prefs.getString("pref_rememberPosition", "").isEmpty();
+                        SharedPreferences.Editor editor = prefs.edit()
+                                .putInt("state_lastPlayedSong", snapshot.currentSong);
+                        if (rememberPosition) {
+                            editor.putInt("state_lastPosition", snapshot.position);
+                        }
+                        editor.apply();
+                        if (service.getState() == SMPService.State.INVALID) {
+                            service.init(snapshot.songs, metadataCache, songChangeNotification);
+                        } else {
+                            service.setSongList(snapshot.songs, metadataCache);
+                        }
+                        service.verifySongList();
+                        if (snapshot.songs.isEmpty()) {
+                            onNextSong(null);
+                        } else if (play) {
+                            service.playpause();
+                            if (rememberPosition && snapshot.position > 0) {
+                                service.seek(snapshot.position);
+                            }
+                        }
+                    }
+                });
     }
 
     public void onBtnPlayPause(View view) {
@@ -465,9 +535,12 @@ public class SMPActivity extends Activity {
                 .remove("state_lastPlayedSong")
                 .putString("state_recentPaths", String.join(":", recents))
                 .apply();
+        // Only the recent folders can be reopened without picking them again
+        ArrayList<String> snapshotFolders = new ArrayList<>(recents);
+        snapshotFolders.add(newPath);
+        QueueSnapshot.prune(this, snapshotFolders);
         if (service != null) {
-            service.setSongList(getSongList(newPath));
-            service.playpause();
+            scan(newPath, true);
         }
     }
     private void showShutoffDialog() {
@@ -475,7 +548,7 @@ public class SMPActivity extends Activity {
             return;
         }
         int delay = (int)service.getShutoffDelayMs();
-        String timeoutStr = delay == -1 ? "Never" : MetadataUtils.formatTime(delay);
+        String timeoutStr = delay == -1 ? "Never" : StringUtils.formatTime(delay);
         new AlertDialog.Builder(this)
                 .setTitle(String.format("Current timeout: %s\nChoose new timeout:", timeoutStr))
                 .setItems(getResources().getStringArray(R.array.pref_shutoffTimer_entries), (dialog, which) -> {
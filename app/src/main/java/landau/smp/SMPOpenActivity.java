@@ -17,7 +17,6 @@ import android.widget.ListView;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 @SuppressWarnings("WeakerAccess")
@@ -107,14 +106,15 @@ public class SMPOpenActivity extends ListActivity {
         setTitle(pathStr);
 
         ArrayList<FileData> items = new ArrayList<>();
-        File[] files = path.listFiles();
-        if (files == null) {
-            files = new File[0];
+        String[] names = path.list();
+        if (names == null) {
+            names = new String[0];
         }
-        for (File f : files) {
-            items.add(new FileData(f));
+        // Sorted like the songs, see SongList.sortByPath()
+        new NaturalOrder().sort(names);
+        for (String name : names) {
+            items.add(new FileData(new File(path, name)));
         }
-        Collections.sort(items, (lhs, rhs) -> lhs.toString().compareTo(rhs.toString()));
         File parent = path.getParentFile();
         if (parent != null) {
             items.add(0, new FileData(parent, "..", path));
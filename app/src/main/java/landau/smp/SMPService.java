@@ -22,8 +22,11 @@ import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.List;
+import java.util.BitSet;
+import java.util.Random;
 
 public class SMPService extends Service {
     public static final String MEDIA_BUTTON_ACTION = SMPService.class.getCanonicalName() + ".action";
@@ -34,8 +37,18 @@ public class SMPService extends Service {
     private static final String TAG = SMPService.class.getSimpleName();
 
 
-    private List<Song> songList;
-    private int currentSong;
+    private PlayQueue queue;
+    // False while queue has the start of a list that is still being scanned, see setPartialSongList()
+    private boolean songListComplete;
+    private BatchMetadataExtractor batchExtractor;
+    private BatchMetadataExtractor.Task extractionTask;
+    private MetadataCache metadataCache;
+    private MetadataPrefetcher metadataPrefetcher;
+    private FolderWatcher folderWatcher;
+    // The played folder and whether queue is shuffled, for QueueSnapshot
+    private String folder;
+    private boolean shuffled;
+    private CoverArtCache coverArtCache;
     private MediaPlayer mediaPlayer;
     private Notification.Builder notificationBuilder;
     private SongChangeNotification songChangeNotification;
@@ -156,9 +169,9 @@ public class SMPService extends Service {
         return false;
     }
 
-    public void init(List<Song> songList, SongChangeNotification songChangeNotification) {
+    public void init(SongList songList, MetadataCache metadataCache, SongChangeNotification songChangeNotification) {
         prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        setSongList(songList);
+        setSongList(songList, metadataCache);
         Intent intent = new Intent(this, SMPActivity.class)
                 .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -178,9 +191,8 @@ public class SMPService extends Service {
                 .setContentTitle(getText(R.string.app_name));
         startForeground(1, notificationBuilder.build());
         this.songChangeNotification = songChangeNotification;
-        if (!songList.isEmpty()) {
-            Song song = songList.get(currentSong);
-            song.extractMetadata();
+        if (!queue.isEmpty()) {
+            queue.getCurrent().extractMetadata();
             playAfterStop();
             pause();
             stopShutoffTimer();
@@ -189,23 +201,178 @@ public class SMPService extends Service {
                 seek(position);
             }
             // playAfterStop can remove non-playable items resulting in an empty list
-            songChangeNotification.onNextSong(songList.isEmpty() ? null : song);
+            songChangeNotification.onNextSong(queue.isEmpty() ? null : queue.getCurrent());
         }
     }
 
-    public void  setSongList(List<Song> songList) {
+    /**
+     * metadataCache is the one songList was restored from, it's updated once all songs are extracted.
+     */
+    public void  setSongList(SongList songList, MetadataCache metadataCache) {
+        saveSnapshot();
         stop();
-        this.songList = songList;
-        currentSong = prefs.getInt("state_lastPlayedSong", 0);
-        if (currentSong >= songList.size()) {
-            currentSong = 0;
+        queue = new PlayQueue(songList, prefs.getInt("state_lastPlayedSong", 0));
+        this.metadataCache = metadataCache;
+        setFolder();
+        songListComplete = true;
+        startMetadataExtraction();
+        startWatching(false);
+    }
+
+    /**
+     * Checks a list given to init() or setSongList() that wasn't just scanned, e.g. restored from a QueueSnapshot,
+     * against the folder in the background, and applies the differences.
+     */
+    public void verifySongList() {
+        startWatching(true);
+    }
+
+    /**
+     * Like setSongList(), for the first songs of a folder that is still being scanned, so that playback can
+     * start right away. Starts at the first song. Metadata of the whole list is extracted and cached only
+     * once it's complete, see completeSongList().
+     */
+    public void setPartialSongList(SongList songList, MetadataCache metadataCache) {
+        saveSnapshot();
+        stop();
+        if (extractionTask != null) {
+            extractionTask.cancel();
+            extractionTask = null;
+        }
+        stopWatching();
+        queue = new PlayQueue(songList, 0);
+        this.metadataCache = metadataCache;
+        setFolder();
+        songListComplete = false;
+    }
+
+    /**
+     * Replaces a list given to setPartialSongList() with the complete one, which starts with the same songs,
+     * so the current song keeps its position and playback goes on.
+     */
+    public void completeSongList(SongList songList) {
+        boolean wasEmpty = queue.isEmpty();
+        // Songs removed from the partial list are left in the complete one, and removed again when played
+        queue = new PlayQueue(songList, queue.getIndex());
+        songListComplete = true;
+        startMetadataExtraction();
+        startWatching(false);
+        if (wasEmpty && state == State.STOPPED) {
+            // The songs found first couldn't be played, go on with the rest. The player was left without a source.
+            if (mediaPlayer != null) {
+                mediaPlayer.release();
+                mediaPlayer = null;
+            }
+            playAfterStop();
+        }
+    }
+
+    private void startMetadataExtraction() {
+        if (extractionTask != null) {
+            extractionTask.cancel();
+        }
+        if (batchExtractor == null) {
+            batchExtractor = new BatchMetadataExtractor();
+        }
+        long startTime = SystemClock.uptimeMillis();
+        SongTable table = queue.getSongs().getTable();
+        MetadataCache cache = metadataCache;
+        extractionTask = batchExtractor.start(table, new BatchMetadataExtractor.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+                // Only the current song is displayed, and it's extracted on demand if not done yet
+            }
+
+            @Override
+            public void onFinished(int done, int total, boolean cancelled) {
+                Log.i(TAG, "Extracted metadata for " + done + "/" + total + " files in "
+                        + (SystemClock.uptimeMillis() - startTime) + " ms" + (cancelled ? " (cancelled)" : ""));
+                // What was extracted is valid even if cancelled
+                cache.saveAsync(table);
+                if (queue.getSongs().getTable() == table) {
+                    saveSnapshot();
+                }
+            }
+        });
+    }
+
+    private void setFolder() {
+        // The scan that produced the list started after these were set
+        folder = prefs.getString("state_lastPlayFolder", "");
+        shuffled = prefs.getBoolean("pref_shuffle", false);
+    }
+
+    /**
+     * Saves the queue of the played folder, so that it resumes without a scan next time, see QueueSnapshot.
+     */
+    private void saveSnapshot() {
+        if (queue == null || !songListComplete) {
+            return;
+        }
+        QueueSnapshot.saveAsync(this, folder, queue.getSongs(), shuffled, queue.getIndex(), getCurrentTime());
+    }
+
+    private void startWatching(boolean verify) {
+        stopWatching();
+        // Not when a single file is played
+        if (new File(folder).isDirectory()) {
+            folderWatcher = new FolderWatcher(queue.getSongs().getTable(), verify, this::applyChanges);
+        }
+    }
+
+    private void stopWatching() {
+        if (folderWatcher != null) {
+            folderWatcher.stop();
+            folderWatcher = null;
+        }
+    }
+
+    /**
+     * Applies files added to and removed from the played folder, see FolderWatcher. The current song keeps
+     * playing, even if its file was removed. If it can't be opened when played again, it's dropped then.
+     * Added files go where a scan would put them: in path order, or when shuffling, after the rest,
+     * shuffled among themselves.
+     */
+    private void applyChanges(int[] removedRows, int[] addedRows) {
+        SongList songList = queue.getSongs();
+        int currentSong = queue.getIndex();
+        int currentRow = songList.isEmpty() ? -1 : songList.get(currentSong).getIndex();
+        BitSet removed = new BitSet();
+        for (int row : removedRows) {
+            if (row != currentRow) {
+                removed.set(row);
+            }
+        }
+        songList.removeRows(removed);
+        currentSong = currentRow >= 0 ? songList.indexOfRow(currentRow) : 0;
+
+        SongTable table = songList.getTable();
+        if (prefs.getBoolean("pref_shuffle", false)) {
+            // Appended in one block, so that the rows already there don't move, and neither does the current song
+            int from = songList.size();
+            songList.addRows(addedRows);
+            if (!songList.isShuffled() && addedRows.length > 1) {
+                songList.shuffle(new Random().nextLong(), from);
+            }
+        } else {
+            for (int row : addedRows) {
+                int index = songList.insertionIndexByPath(table.getPath(row));
+                songList.insertRow(index, row);
+                if (index <= currentSong && currentRow >= 0) {
+                    currentSong++;
+                }
+            }
         }
+        queue.setIndex(currentSong);
+        Log.i(TAG, "Folder changed: " + removedRows.length + " removed, " + addedRows.length + " added");
+        // Extracts the added songs and saves the cache, the others are skipped quickly
+        startMetadataExtraction();
     }
 
     public void connect(SongChangeNotification songChangeNotification) {
         this.songChangeNotification = songChangeNotification;
-        if (currentSong < songList.size()) {
-            songChangeNotification.onNextSong(songList.get(currentSong));
+        if (!queue.isEmpty()) {
+            songChangeNotification.onNextSong(queue.getCurrent());
         } else {
             songChangeNotification.onNextSong(null);
         }
@@ -214,6 +381,7 @@ public class SMPService extends Service {
 
     public void deinit() {
         stopForeground(true);
+        saveSnapshot();
         stop();
         updateState(State.INVALID);
 
@@ -227,8 +395,22 @@ public class SMPService extends Service {
             mediaPlayer.release();
             mediaPlayer = null;
         }
+        if (batchExtractor != null) {
+            batchExtractor.shutdown();
+            batchExtractor = null;
+            extractionTask = null;
+        }
+        if (coverArtCache != null) {
+            coverArtCache.shutdown();
+            coverArtCache = null;
+        }
+        if (metadataPrefetcher != null) {
+            metadataPrefetcher.shutdown();
+            metadataPrefetcher = null;
+        }
+        stopWatching();
 
-        prefs.edit().putInt("state_lastPlayedSong", currentSong).apply();
+        prefs.edit().putInt("state_lastPlayedSong", queue.getIndex()).apply();
 
         stopSelf();
     }
@@ -243,7 +425,7 @@ public class SMPService extends Service {
     }
 
     private void playCommon() {
-        if (songList.isEmpty()) {
+        if (queue.isEmpty()) {
             return;
         }
         setNotification();
@@ -257,7 +439,7 @@ public class SMPService extends Service {
         if (mediaPlayer == null || state != State.PAUSED) {
             return;
         }
-        if (songList.isEmpty()) {
+        if (queue.isEmpty()) {
             stop();
             return;
         }
@@ -270,7 +452,7 @@ public class SMPService extends Service {
         }
         registerRemoteControl();
         if (mediaPlayer == null) {
-            if (!songList.isEmpty()) {
+            if (!queue.isEmpty()) {
                 mediaPlayer = new MediaPlayer();
                 if (!initMediaPlayer(mediaPlayer)) {
                     // no songs
@@ -315,14 +497,16 @@ public class SMPService extends Service {
     }
 
     public void prev() {
-        if (mediaPlayer != null && !songList.isEmpty() && songList.size() != 1) {
-            currentSong = (currentSong - 2 + songList.size()) % songList.size();
+        if (mediaPlayer != null && queue.size() > 1) {
+            // Two back, next() then moves one forward
+            queue.previous();
+            queue.previous();
             next();
         }
     }
 
     public void next() {
-        if (mediaPlayer != null && !songList.isEmpty() && songList.size() != 1) {
+        if (mediaPlayer != null && queue.size() > 1) {
             mediaPlayer.seekTo(mediaPlayer.getDuration());
             if (state == State.PAUSED) {
                 playpause();
@@ -396,8 +580,13 @@ public class SMPService extends Service {
     }
 
     private void setNotification() {
-        Song song = songList.get(currentSong);
+        Song song = queue.getCurrent();
+        // Normally already done by the prefetcher, when the previous song started
         song.extractMetadata();
+        if (metadataPrefetcher == null) {
+            metadataPrefetcher = new MetadataPrefetcher();
+        }
+        metadataPrefetcher.prefetch(queue);
         if (songChangeNotification != null) {
             songChangeNotification.onNextSong(song);
         }
@@ -410,56 +599,94 @@ public class SMPService extends Service {
         e.putString(MediaMetadataRetriever.METADATA_KEY_ALBUM, MetadataUtils.getAlbumRCC(prefs, song));
         e.putLong(MediaMetadataRetriever.METADATA_KEY_DURATION, song.getDuration());
         e.apply();
+        loadCoverArt(song);
 
         notificationBuilder.setContentTitle(MetadataUtils.getTitle(prefs, song))
                 .setContentText(MetadataUtils.getArtistAndAlbum(prefs, song))
-                .setContentInfo(MetadataUtils.formatTime(song.getDuration()))
+                .setContentInfo(StringUtils.formatTime(song.getDuration()))
                 .setSmallIcon(android.R.drawable.ic_media_play);
         NotificationManager notificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
         assert notificationManager != null;
         notificationManager.notify(1, notificationBuilder.build());
     }
 
+    private void loadCoverArt(Song song) {
+        if (coverArtCache == null) {
+            coverArtCache = new CoverArtCache(this);
+        }
+        coverArtCache.load(song, (s, bitmap) -> {
+            // The song may have changed, or the service stopped, while the art was loading
+            if (bitmap == null || remoteControlClient == null || queue.isEmpty() || !queue.getCurrent().equals(s)) {
+                return;
+            }
+            remoteControlClient.editMetadata(false)
+                    .putBitmap(RemoteControlClient.MetadataEditor.BITMAP_KEY_ARTWORK, bitmap)
+                    .apply();
+        });
+    }
+
     private boolean initMediaPlayer(MediaPlayer mediaPlayer) {
         MediaPlayer.OnCompletionListener advanceToNextFile = mp -> {
-            if (songList.isEmpty()) {
+            if (queue.isEmpty()) {
                 // No playable files, stop
                 stop();
                 songChangeNotification.onNextSong(null);
                 return;
             }
-            String key = getFileKey(songList.get(currentSong).getFilename());
+            String key = getFileKey(queue.getCurrent().getFilename());
             if (prefs.contains(key)) {
                 prefs.edit().remove(key).apply();
             }
-            currentSong = (currentSong + 1) % songList.size();
+            queue.next();
             if (initMediaPlayer(mp)) {
                 setNotification();
                 mp.start();
             }
         };
 
-        while (!songList.isEmpty()) {
-            mediaPlayer.reset();
-            try {
-                String filename = songList.get(currentSong).getFilename();
-                mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-                mediaPlayer.setDataSource(filename);
-                mediaPlayer.setOnCompletionListener(advanceToNextFile);
-                mediaPlayer.prepare();
-                int pos = prefs.getInt(getFileKey(filename), -1);
-                if (pos != -1) {
-                    mediaPlayer.seekTo(pos);
-                }
-                mediaPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-                return true;
-            } catch (IOException|IllegalStateException e) {
-                // Thrown if file can't be opened, e.g. if it's a non-audio file
-                songList.remove(currentSong);
-                if (currentSong == songList.size()) {
-                    currentSong = 0;
+        boolean excluded = false;
+        // Songs passed over because they couldn't be opened, so that a folder that can't be read at all
+        // ends the loop
+        int skipped = 0;
+        try {
+            while (!queue.isEmpty() && skipped < queue.size()) {
+                mediaPlayer.reset();
+                String filename = queue.getCurrent().getFilename();
+                boolean opened = false;
+                // Opened here, so that an error opening it is told apart from MediaPlayer rejecting it
+                try (FileInputStream in = new FileInputStream(filename)) {
+                    mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+                    // Duplicates the descriptor, so it can be closed right after
+                    mediaPlayer.setDataSource(in.getFD());
+                    opened = true;
+                    mediaPlayer.setOnCompletionListener(advanceToNextFile);
+                    mediaPlayer.prepare();
+                    int pos = prefs.getInt(getFileKey(filename), -1);
+                    if (pos != -1) {
+                        mediaPlayer.seekTo(pos);
+                    }
+                    mediaPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+                    return true;
+                } catch (IOException|IllegalStateException e) {
+                    if (opened) {
+                        // Rejected by prepare(), e.g. a non-audio file. Remember it, so that it's left out
+                        // of the list until it changes.
+                        metadataCache.exclude(queue.removeCurrent(), Song.Failure.UNPLAYABLE);
+                        excluded = true;
+                    } else {
+                        // Maybe the storage isn't mounted yet or the file is still being copied, so it's
+                        // only passed over, and tried again when it comes up next
+                        Log.w(TAG, "Can't open " + filename, e);
+                        queue.next();
+                        skipped++;
+                    }
                 }
             }
+        } finally {
+            if (excluded && songListComplete) {
+                // Once for a run of bad files. Otherwise saved once the scan completes.
+                metadataCache.saveAsync(queue.getSongs().getTable());
+            }
         }
         return false;
     }
@@ -514,15 +741,15 @@ public class SMPService extends Service {
             int curPos = mediaPlayer.getCurrentPosition();
             editor.putInt("state_lastPosition", curPos);
             if (curPos >= 30*1000 && curPos <= mediaPlayer.getDuration() - 30*1000) {
-                editor.putInt(getFileKey(songList.get(currentSong).getFilename()), curPos);
+                editor.putInt(getFileKey(queue.getCurrent().getFilename()), curPos);
             } else {
-                editor.remove(getFileKey(songList.get(currentSong).getFilename()));
+                editor.remove(getFileKey(queue.getCurrent().getFilename()));
             }
             editor.apply();
         } else {
             prefs.edit()
                     .remove("state_lastPosition")
-                    .remove(getFileKey(songList.get(currentSong).getFilename()))
+                    .remove(getFileKey(queue.getCurrent().getFilename()))
                     .apply();
         }
     }
@@ -3,78 +3,195 @@ package landau.smp;
 import android.media.MediaMetadataRetriever;
 
 import java.io.IOException;
-import java.nio.CharBuffer;
-import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
 
 @SuppressWarnings("WeakerAccess")
 public class Song {
     private static final String TAG = Song.class.getSimpleName();
 
-    private boolean extracted = false;
-    private final String filename;
-    private String artist, album, title;
-    private int durationMs;
+    /**
+     * Why a file has no metadata or can't be played. Persisted in MetadataCache, so the ordinals must not change.
+     */
+    public enum Failure {
+        NONE,
+        // Rejected by FormatProbe while scanning
+        NOT_AUDIO,
+        // Can't be opened. No longer recorded, as a read error may be temporary.
+        UNREADABLE,
+        // MediaMetadataRetriever can't extract it
+        UNSUPPORTED,
+        // MediaPlayer can't prepare it
+        UNPLAYABLE,
+    }
+
+    private final SongTable table;
+    private final int index;
+
+    /**
+     * A view of row index of table, see {@link SongTable#get}.
+     */
+    Song(SongTable table, int index) {
+        this.table = table;
+        this.index = index;
+    }
 
-    private static final CharsetEncoder encoder = Charset.forName("windows-1252").newEncoder();
-    private final CharsetDecoder decoder;
+    /**
+     * Sets metadata that was extracted before, e.g. loaded from MetadataCache.
+     */
+    void setMetadata(String artist, String album, String title, int durationMs, Failure failure) {
+        table.setMetadata(index, artist, album, title, durationMs, failure);
+    }
 
-    public Song(String filename, CharsetDecoder assumedDecoder) {
-        this.filename = filename;
-        this.decoder = assumedDecoder;
+    /**
+     * Records a failure found outside of extractMetadata(), e.g. by the scanner or the player.
+     */
+    void setFailure(Failure failure) {
+        table.setFailure(index, failure);
     }
 
+    /**
+     * Extracts metadata, unless already done. Can be called from any thread. If another thread is extracting
+     * the same song, waits for it to finish.
+     */
     public void extractMetadata() {
-        if (extracted) {
+        if (!table.beginExtraction(index)) {
             return;
         }
+        Extraction result = new Extraction(table.getAssumedCharset());
+        // One open file for all the parsers, and for MediaMetadataRetriever if it's needed
+        boolean readFailed = false;
+        try (FileChannelReader reader = FileChannelReader.open(getFilename())) {
+            result.extract(reader);
+        } catch (IOException e) {
+            // Can't be read, maybe not yet, e.g. while the card mounts. Leave it unextracted and uncached,
+            // so it's tried again, unless it failed closing only.
+            readFailed = !result.done;
+        } finally {
+            // Also on unexpected exceptions, so that threads waiting for this song don't wait forever
+            if (readFailed) {
+                table.abortExtraction(index);
+            } else {
+                table.setMetadata(index, result.artist, result.album, result.title, result.durationMs,
+                        result.failure);
+            }
+        }
+    }
+
+    public SongTable getTable() { return table; }
+    public int getIndex() { return index; }
+    public String getFilename() { return table.getPath(index); }
+    public long getFileSize() { return table.getFileSize(index); }
+    public long getLastModified() { return table.getLastModified(index); }
+    public boolean isExtracted() { return table.isExtracted(index); }
+    public Failure getFailure() { return table.getFailure(index); }
+    public String getArtist() { return table.getArtist(index); }
+    public String getAlbum() { return table.getAlbum(index); }
+    public String getTitle() { return table.getTitle(index); }
+    public int getDuration() { return table.getDuration(index); }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Song)) {
+            return false;
+        }
+        Song other = (Song) o;
+        return table == other.table && index == other.index;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(table) * 31 + index;
+    }
+
+    /**
+     * Results of extractMetadata() while it runs.
+     */
+    private static class Extraction {
+        // Charset of non-Unicode tags, null to guess it from the text
+        private final Charset assumedCharset;
+        private String artist, album, title;
+        private int durationMs;
+        private Failure failure = Failure.NONE;
+        private boolean done;
+
+        Extraction(Charset assumedCharset) {
+            this.assumedCharset = assumedCharset;
+        }
+
+        void extract(FileChannelReader reader) throws IOException {
+            ExtractionContext context = ExtractionContext.forCurrentThread();
+            int duration = -1;
+            FormatProbe.Format format = context.formatProbe.probe(reader);
+            if (format == FormatProbe.Format.FLAC || format == FormatProbe.Format.OGG) {
+                VorbisCommentExtractor vorbisExtractor = context.vorbisCommentExtractor;
+                if (vorbisExtractor.extractMetadata(reader)) {
+                    artist = vorbisExtractor.getArtist();
+                    album = vorbisExtractor.getAlbum();
+                    title = vorbisExtractor.getTitle();
+                    duration = vorbisExtractor.getDurationMs();
+                }
+            } else if (format == FormatProbe.Format.MP4) {
+                MP4Extractor mp4Extractor = context.mp4Extractor;
+                if (mp4Extractor.extractMetadata(reader)) {
+                    artist = mp4Extractor.getArtist();
+                    album = mp4Extractor.getAlbum();
+                    title = mp4Extractor.getTitle();
+                    duration = mp4Extractor.getDurationMs();
+                }
+            } else {
+                ID3Extractor id3Extractor = context.id3Extractor;
+                id3Extractor.extractMetadata(reader, assumedCharset);
+                artist = id3Extractor.getArtist();
+                album = id3Extractor.getAlbum();
+                title = id3Extractor.getTitle();
+                if (format == FormatProbe.Format.MP3) {
+                    duration = context.mp3DurationProbe.getDurationMs(reader);
+                }
+            }
+            if (duration >= 0) {
+                // A format we parse ourselves, so we already have all tags there are, and the duration
+                durationMs = duration;
+                done = true;
+                return;
+            }
 
-        ID3Extractor id3Extractor = new ID3Extractor(filename, decoder);
-        id3Extractor.extractMetadata();
-        artist = id3Extractor.getArtist();
-        album = id3Extractor.getAlbum();
-        title = id3Extractor.getTitle();
-
-        // Still need Android's extractor to get duration
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        try {
-            retriever.setDataSource(filename);
-        } catch (RuntimeException e) {
-            // IllegalArgumentException (child of RuntimeException) is thrown if file is not found
-            // or can't be opened. RuntimeException itself is thrown if metadata can't be extracted,
-            // e.g. if it's a non-audio file. In this case, do nothing.
+            // Other formats need Android's extractor for duration, and for tags we don't parse
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            try {
+                retriever.setDataSource(reader.getFD());
+            } catch (IOException | RuntimeException e) {
+                // IllegalArgumentException (child of RuntimeException) is thrown if file is not found
+                // or can't be opened. RuntimeException itself is thrown if metadata can't be extracted,
+                // e.g. if it's a non-audio file. Keep whatever tags we parsed, and don't try again.
+                try {
+                    retriever.release();
+                } catch (IOException ignored) {}
+                durationMs = 0;
+                failure = Failure.UNSUPPORTED;
+                done = true;
+                return;
+            }
+            if (artist == null)
+                artist = getTagWithFallback(retriever, MediaMetadataRetriever.METADATA_KEY_ARTIST, 26, context, assumedCharset);
+            if (album == null)
+                album = getTagWithFallback(retriever, MediaMetadataRetriever.METADATA_KEY_ALBUM, 25, context, assumedCharset);
+            if (title == null)
+                title = getTagWithFallback(retriever, MediaMetadataRetriever.METADATA_KEY_TITLE, 31, context, assumedCharset);
+            try {
+                //noinspection DataFlowIssue (extractMetadata may return null)
+                durationMs = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            } catch (NumberFormatException e) {
+                durationMs = 0;
+            }
             try {
                 retriever.release();
             } catch (IOException ignored) {}
-            return;
-        }
-        if (artist == null)
-            artist = getTagWithFallback(retriever, MediaMetadataRetriever.METADATA_KEY_ARTIST, 26);
-        if (album == null)
-            album = getTagWithFallback(retriever, MediaMetadataRetriever.METADATA_KEY_ALBUM, 25);
-        if (title == null)
-            title = getTagWithFallback(retriever, MediaMetadataRetriever.METADATA_KEY_TITLE, 31);
-        try {
-            //noinspection DataFlowIssue (extractMetadata may return null)
-            durationMs = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
-        } catch (NumberFormatException e) {
-            durationMs = 0;
+            done = true;
         }
-        try {
-            retriever.release();
-        } catch (IOException ignored) {}
-        extracted = true;
     }
 
-    public String getFilename() { return filename; }
-    public String getArtist() { return artist; }
-    public String getAlbum() { return album; }
-    public String getTitle() { return title; }
-    public int getDuration() { return durationMs; }
-
-    private String getTagWithFallback(MediaMetadataRetriever retriever, int key1, int key2) {
+    private static String getTagWithFallback(MediaMetadataRetriever retriever, int key1, int key2,
+                                             ExtractionContext context, Charset assumedCharset) {
         String s = retriever.extractMetadata(key1);
         if (s == null) {
             s = retriever.extractMetadata(key2);
@@ -86,11 +203,6 @@ public class Song {
         if (s.isEmpty()) {
             return null;
         }
-
-        try {
-            return decoder.decode(encoder.encode(CharBuffer.wrap(s))).toString();
-        } catch (CharacterCodingException e) {
-            return s;
-        }
+        return context.textDecoder.reinterpretWindows1252(s, assumedCharset);
     }
 }
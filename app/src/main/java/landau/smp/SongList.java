@@ -0,0 +1,256 @@
+package landau.smp;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.RandomAccess;
+
+/**
+ * The songs to play, in play order: an array of rows of a {@link SongTable}. Songs are views created on
+ * access, so the list costs an int per song. Must be used on the main thread only.
+ * <p>
+ * A shuffled list keeps its rows in the original order and maps positions through a {@link ShuffleOrder}.
+ * Songs appended to it are shuffled among themselves after the rest. Other changes apply the order first.
+ */
+public class SongList extends AbstractList<Song> implements RandomAccess {
+    private final SongTable table;
+    private int[] order = new int[64];
+    private int size;
+    // Maps positions from shuffledFrom on, null if the order is as stored
+    private ShuffleOrder shuffleOrder;
+    private int shuffledFrom;
+
+    public SongList(SongTable table) {
+        this.table = table;
+    }
+
+    public SongTable getTable() {
+        return table;
+    }
+
+    /**
+     * Appends a row of the table.
+     */
+    public void addRow(int row) {
+        if (size == order.length) {
+            order = Arrays.copyOf(order, size * 2);
+        }
+        order[size++] = row;
+        if (shuffleOrder != null) {
+            shuffleOrder.extend(size - shuffledFrom);
+        }
+    }
+
+    /**
+     * Appends rows of the table. In a shuffled list they're shuffled among themselves as one block, where
+     * adding them one by one would leave each in its own.
+     */
+    public void addRows(int[] rows) {
+        if (size + rows.length > order.length) {
+            order = Arrays.copyOf(order, Math.max(order.length * 2, size + rows.length));
+        }
+        System.arraycopy(rows, 0, order, size, rows.length);
+        size += rows.length;
+        if (shuffleOrder != null) {
+            shuffleOrder.extend(size - shuffledFrom);
+        }
+    }
+
+    /**
+     * Returns true if the list maps positions through a ShuffleOrder, see shuffle(). Edits that move rows
+     * undo that, but keep the shuffled order.
+     */
+    public boolean isShuffled() {
+        return shuffleOrder != null;
+    }
+
+    @Override
+    public Song get(int index) {
+        return table.get(getRow(index));
+    }
+
+    /**
+     * Returns the table row of the song at index, without creating a Song.
+     */
+    public int getRow(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return order[toStored(index)];
+    }
+
+    @Override
+    public Song set(int index, Song song) {
+        Song previous = get(index);
+        order[toStored(index)] = song.getIndex();
+        return previous;
+    }
+
+    @Override
+    public Song remove(int index) {
+        Song previous = get(index);
+        applyShuffle();
+        System.arraycopy(order, index + 1, order, index, size - index - 1);
+        size--;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the position of a row of the table, or -1 if it's not in the list.
+     */
+    public int indexOfRow(int row) {
+        for (int i = 0; i < size; i++) {
+            if (order[i] == row) {
+                return toPosition(i);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts a row of the table at index.
+     */
+    public void insertRow(int index, int row) {
+        applyShuffle();
+        if (size == order.length) {
+            order = Arrays.copyOf(order, size * 2);
+        }
+        System.arraycopy(order, index, order, index + 1, size - index);
+        order[index] = row;
+        size++;
+    }
+
+    /**
+     * Removes the songs whose rows are set in rows, keeping the order of the rest.
+     */
+    public void removeRows(BitSet rows) {
+        applyShuffle();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!rows.get(order[i])) {
+                order[kept++] = order[i];
+            }
+        }
+        size = kept;
+    }
+
+    /**
+     * Removes the songs at the indices set in indices, keeping the order of the rest.
+     */
+    public void removeIndices(BitSet indices) {
+        applyShuffle();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!indices.get(i)) {
+                order[kept++] = order[i];
+            }
+        }
+        size = kept;
+    }
+
+    /**
+     * Returns where a file with the given path goes in a list sorted by path, see sortByPath().
+     */
+    public int insertionIndexByPath(String path) {
+        applyShuffle();
+        NaturalOrder naturalOrder = new NaturalOrder();
+        byte[] key = naturalOrder.getKey(path);
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            String midPath = table.getPath(order[mid]);
+            int result = NaturalOrder.compare(naturalOrder.getKey(midPath), key);
+            if (result < 0 || (result == 0 && midPath.compareTo(path) < 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Moves the song at index to the front, keeping the order of the rest.
+     */
+    public void moveToFront(int index) {
+        applyShuffle();
+        int row = order[index];
+        System.arraycopy(order, 0, order, 1, index);
+        order[0] = row;
+    }
+
+    /**
+     * Sorts by path in {@link NaturalOrder}, ties by plain string order. Each key is built once, instead of
+     * on every comparison, and the part of a directory once for all its files.
+     */
+    public void sortByPath() {
+        shuffleOrder = null;
+        NaturalOrder naturalOrder = new NaturalOrder();
+        byte[][] directoryKeys = new byte[table.getDirectoryCount()][];
+        byte[][] keys = new byte[size][];
+        Integer[] positions = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            int dir = table.getDirectory(order[i]);
+            if (directoryKeys[dir] == null) {
+                directoryKeys[dir] = naturalOrder.getKey(table.getDirectoryPath(dir));
+            }
+            keys[i] = naturalOrder.getKey(directoryKeys[dir], table.getName(order[i]));
+            positions[i] = i;
+        }
+        int[] unsorted = order;
+        NaturalOrder.sort(positions, (lhs, rhs) -> {
+            int result = NaturalOrder.compare(keys[lhs], keys[rhs]);
+            return result != 0 ? result : table.getPath(unsorted[lhs]).compareTo(table.getPath(unsorted[rhs]));
+        });
+        int[] sorted = new int[order.length];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = order[positions[i]];
+        }
+        order = sorted;
+    }
+
+    /**
+     * Shuffles the songs from index from on. Only a {@link ShuffleOrder} is created, the rows stay where they are,
+     * so this takes O(1) and the same seed gives the same order.
+     */
+    public void shuffle(long seed, int from) {
+        applyShuffle();
+        shuffleOrder = new ShuffleOrder(seed, size - from);
+        shuffledFrom = from;
+    }
+
+    private int toStored(int index) {
+        if (shuffleOrder == null || index < shuffledFrom) {
+            return index;
+        }
+        return shuffledFrom + shuffleOrder.get(index - shuffledFrom);
+    }
+
+    private int toPosition(int stored) {
+        if (shuffleOrder == null || stored < shuffledFrom) {
+            return stored;
+        }
+        return shuffledFrom + shuffleOrder.indexOf(stored - shuffledFrom);
+    }
+
+    /**
+     * Stores the rows in play order, for changes that move them.
+     */
+    private void applyShuffle() {
+        if (shuffleOrder == null) {
+            return;
+        }
+        int[] shuffled = new int[order.length];
+        for (int i = 0; i < size; i++) {
+            shuffled[i] = order[toStored(i)];
+        }
+        order = shuffled;
+        shuffleOrder = null;
+    }
+}
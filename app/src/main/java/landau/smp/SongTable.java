@@ -0,0 +1,414 @@
+package landau.smp;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All files found in a played folder, stored by column so that a large library doesn't cost an object
+ * graph per file. Paths are stored as a directory tree plus file names in a shared char pool, and built
+ * only when asked for. Artists and albums are interned in dictionaries, as they repeat across songs.
+ * {@link Song} is a view of a row.
+ * <p>
+ * Rows are only ever appended, so a row number identifies a file for the table's lifetime. Rows of files
+ * that aren't played (see {@link Song.Failure}) stay in the table, to keep their MetadataCache records.
+ * Rows of files deleted while the folder plays are marked removed instead, see FolderWatcher.
+ * <p>
+ * Rows are added by the scanner and filled in by extraction threads while the player reads them,
+ * so all access is synchronized.
+ */
+public class SongTable {
+    // flags: bit 0 - extracted, bit 1 - extraction in progress, bit 2 - removed, bits 4-7 - Song.Failure ordinal
+    private static final int kExtracted = 1;
+    private static final int kExtracting = 2;
+    private static final int kRemoved = 4;
+    private static final int kFailureShift = 4;
+    private static final Song.Failure[] kFailures = Song.Failure.values();
+
+    // Charset of non-Unicode tags, null to guess it from the text
+    private final Charset assumedCharset;
+
+    // Directory tree, root directories have parent -1 and their absolute path as name
+    private int dirCount;
+    private int[] dirParents = new int[16];
+    private String[] dirNames = new String[16];
+    // Directory numbers by parent number and name, so that a directory is added once however it's reached
+    private final Map<String, Integer> dirIds = new HashMap<>();
+    // Rows that aren't removed by directory number and name, see rowKey(). Only FolderWatcher looks rows up,
+    // so it's built by the first findRow() and kept up to date after that.
+    private Map<String, Integer> rowIds;
+
+    // File names of all rows, one after another
+    private char[] namePool = new char[1024];
+    private int namePoolLength;
+
+    private int size;
+    private int[] dirs = new int[64];
+    private int[] nameStarts = new int[64];
+    private long[] fileSizes = new long[64];
+    private long[] lastModifieds = new long[64];
+    private int[] durations = new int[64];
+    private byte[] flags = new byte[64];
+    private int[] artists = new int[64];
+    private int[] albums = new int[64];
+    private String[] titles = new String[64];
+
+    private final Dictionary artistDictionary = new Dictionary();
+    private final Dictionary albumDictionary = new Dictionary();
+    // Incremented on every change of rows, see getModificationCount()
+    private int modifications;
+
+    private static class Dictionary {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        int intern(String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = values.size();
+                values.add(s);
+                ids.put(s, id);
+            }
+            return id;
+        }
+
+        String get(int id) {
+            return id < 0 ? null : values.get(id);
+        }
+    }
+
+    public SongTable(Charset assumedCharset) {
+        this.assumedCharset = assumedCharset;
+    }
+
+    public Charset getAssumedCharset() {
+        return assumedCharset;
+    }
+
+    /**
+     * Adds a directory, unless it was added already, and returns its number. name is the directory's name within
+     * parent, or its absolute path if parent is -1.
+     */
+    public synchronized int addDirectory(int parent, String name) {
+        String key = parent + "/" + name;
+        Integer id = dirIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        dirIds.put(key, dirCount);
+        if (dirCount == dirParents.length) {
+            dirParents = Arrays.copyOf(dirParents, dirCount * 2);
+            dirNames = Arrays.copyOf(dirNames, dirCount * 2);
+        }
+        dirParents[dirCount] = parent;
+        dirNames[dirCount] = name;
+        return dirCount++;
+    }
+
+    /**
+     * Adds a file in directory dir and returns its row.
+     */
+    public synchronized int add(int dir, String name, long fileSize, long lastModified) {
+        if (size == dirs.length) {
+            grow();
+        }
+        int nameLength = name.length();
+        if (namePoolLength + nameLength > namePool.length) {
+            namePool = Arrays.copyOf(namePool, Math.max(namePool.length * 2, namePoolLength + nameLength));
+        }
+        name.getChars(0, nameLength, namePool, namePoolLength);
+        dirs[size] = dir;
+        nameStarts[size] = namePoolLength;
+        namePoolLength += nameLength;
+        fileSizes[size] = fileSize;
+        lastModifieds[size] = lastModified;
+        durations[size] = 0;
+        flags[size] = 0;
+        artists[size] = -1;
+        albums[size] = -1;
+        titles[size] = null;
+        modifications++;
+        if (rowIds != null) {
+            rowIds.put(rowKey(size), size);
+        }
+        return size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns a count that changes whenever a row is added, removed or gets its metadata or failure, so that
+     * a saved copy can tell whether it's still up to date.
+     */
+    public synchronized int getModificationCount() {
+        return modifications;
+    }
+
+    public synchronized int getDirectoryCount() {
+        return dirCount;
+    }
+
+    public synchronized int getDirectoryParent(int dir) {
+        return dirParents[dir];
+    }
+
+    public synchronized String getDirectoryName(int dir) {
+        return dirNames[dir];
+    }
+
+    public synchronized String getDirectoryPath(int dir) {
+        StringBuilder sb = new StringBuilder(64);
+        appendDirectory(sb, dir);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number of the directory at path, or -1 if it's not in the table.
+     */
+    public synchronized int findDirectory(String path) {
+        for (int root = 0; root < dirCount; root++) {
+            if (dirParents[root] >= 0) {
+                continue;
+            }
+            String rootPath = dirNames[root];
+            if (path.equals(rootPath)) {
+                return root;
+            }
+            int start = rootPath.endsWith("/") ? rootPath.length() : rootPath.length() + 1;
+            if (!path.startsWith(rootPath) || path.length() <= start || path.charAt(start - 1) != '/') {
+                continue;
+            }
+            int dir = root;
+            while (dir >= 0 && start < path.length()) {
+                int end = path.indexOf('/', start);
+                if (end < 0) {
+                    end = path.length();
+                }
+                Integer id = dirIds.get(dir + "/" + path.substring(start, end));
+                dir = id != null ? id : -1;
+                start = end + 1;
+            }
+            if (dir >= 0) {
+                return dir;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the row of the file name in directory dir that isn't removed, or -1 if there's none.
+     */
+    public synchronized int findRow(int dir, String name) {
+        if (rowIds == null) {
+            rowIds = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                if ((flags[i] & kRemoved) == 0) {
+                    rowIds.put(rowKey(i), i);
+                }
+            }
+        }
+        Integer row = rowIds.get(dir + "/" + name);
+        return row != null ? row : -1;
+    }
+
+    /**
+     * Marks row i removed. Its file is gone, it's neither extracted nor cached anymore.
+     */
+    public synchronized void remove(int i) {
+        flags[i] |= kRemoved;
+        unindex(i);
+        modifications++;
+    }
+
+    /**
+     * Marks all rows in dir and its subdirectories removed, and returns those that weren't already.
+     */
+    public synchronized int[] removeDirectory(int dir) {
+        // A directory is always added after its parent
+        boolean[] inTree = new boolean[dirCount];
+        for (int d = dir; d < dirCount; d++) {
+            inTree[d] = d == dir || (dirParents[d] >= 0 && inTree[dirParents[d]]);
+        }
+        int[] removed = new int[16];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (inTree[dirs[i]] && (flags[i] & kRemoved) == 0) {
+                flags[i] |= kRemoved;
+                unindex(i);
+                if (count == removed.length) {
+                    removed = Arrays.copyOf(removed, count * 2);
+                }
+                removed[count++] = i;
+            }
+        }
+        modifications++;
+        return Arrays.copyOf(removed, count);
+    }
+
+    public synchronized boolean isRemoved(int i) {
+        return (flags[i] & kRemoved) != 0;
+    }
+
+    /**
+     * Returns a view of row i.
+     */
+    public Song get(int i) {
+        return new Song(this, i);
+    }
+
+    public synchronized String getPath(int i) {
+        StringBuilder sb = new StringBuilder(64);
+        appendDirectory(sb, dirs[i]);
+        int start = nameStarts[i];
+        int end = i + 1 < size ? nameStarts[i + 1] : namePoolLength;
+        appendSeparator(sb);
+        return sb.append(namePool, start, end - start).toString();
+    }
+
+    public synchronized int getDirectory(int i) {
+        return dirs[i];
+    }
+
+    /**
+     * Returns the file name of row i, without its directory.
+     */
+    public synchronized String getName(int i) {
+        int start = nameStarts[i];
+        int end = i + 1 < size ? nameStarts[i + 1] : namePoolLength;
+        return new String(namePool, start, end - start);
+    }
+
+    public synchronized long getFileSize(int i) {
+        return fileSizes[i];
+    }
+
+    public synchronized long getLastModified(int i) {
+        return lastModifieds[i];
+    }
+
+    public synchronized String getArtist(int i) {
+        return artistDictionary.get(artists[i]);
+    }
+
+    public synchronized String getAlbum(int i) {
+        return albumDictionary.get(albums[i]);
+    }
+
+    public synchronized String getTitle(int i) {
+        return titles[i];
+    }
+
+    public synchronized int getDuration(int i) {
+        return durations[i];
+    }
+
+    public synchronized boolean isExtracted(int i) {
+        return (flags[i] & kExtracted) != 0;
+    }
+
+    public synchronized Song.Failure getFailure(int i) {
+        return kFailures[(flags[i] & 0xff) >>> kFailureShift];
+    }
+
+    synchronized void setFailure(int i, Song.Failure failure) {
+        flags[i] = (byte) ((flags[i] & ((1 << kFailureShift) - 1)) | (failure.ordinal() << kFailureShift));
+        modifications++;
+    }
+
+    /**
+     * Sets the metadata of row i and marks it extracted. Wakes up threads waiting in beginExtraction().
+     */
+    synchronized void setMetadata(int i, String artist, String album, String title, int durationMs,
+                                  Song.Failure failure) {
+        artists[i] = artistDictionary.intern(artist);
+        albums[i] = albumDictionary.intern(album);
+        titles[i] = title;
+        durations[i] = durationMs;
+        flags[i] = (byte) ((flags[i] & kRemoved) | kExtracted | (failure.ordinal() << kFailureShift));
+        modifications++;
+        notifyAll();
+    }
+
+    /**
+     * Claims row i for extraction. Returns false if there's nothing to extract, i.e. it's extracted already,
+     * removed or known to fail, possibly after waiting for another thread that was extracting it.
+     */
+    synchronized boolean beginExtraction(int i) {
+        while ((flags[i] & kExtracting) != 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if ((flags[i] & (kExtracted | kRemoved)) != 0 || getFailure(i) != Song.Failure.NONE) {
+            return false;
+        }
+        flags[i] |= kExtracting;
+        return true;
+    }
+
+    /**
+     * Gives up a row claimed by beginExtraction() without extracting it, so that it's tried again later.
+     * Wakes up threads waiting in beginExtraction().
+     */
+    synchronized void abortExtraction(int i) {
+        flags[i] &= ~kExtracting;
+        notifyAll();
+    }
+
+    private String rowKey(int i) {
+        int start = nameStarts[i];
+        int end = i + 1 < size ? nameStarts[i + 1] : namePoolLength;
+        return new StringBuilder(16 + end - start).append(dirs[i]).append('/')
+                .append(namePool, start, end - start).toString();
+    }
+
+    private void unindex(int i) {
+        if (rowIds != null) {
+            String key = rowKey(i);
+            Integer row = rowIds.get(key);
+            if (row != null && row == i) {
+                rowIds.remove(key);
+            }
+        }
+    }
+
+    private void appendDirectory(StringBuilder sb, int dir) {
+        int parent = dirParents[dir];
+        if (parent >= 0) {
+            appendDirectory(sb, parent);
+            appendSeparator(sb);
+        }
+        sb.append(dirNames[dir]);
+    }
+
+    private static void appendSeparator(StringBuilder sb) {
+        // Only the root directory "/" ends with a separator
+        if (sb.charAt(sb.length() - 1) != '/') {
+            sb.append('/');
+        }
+    }
+
+    private void grow() {
+        int capacity = size * 2;
+        dirs = Arrays.copyOf(dirs, capacity);
+        nameStarts = Arrays.copyOf(nameStarts, capacity);
+        fileSizes = Arrays.copyOf(fileSizes, capacity);
+        lastModifieds = Arrays.copyOf(lastModifieds, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        artists = Arrays.copyOf(artists, capacity);
+        albums = Arrays.copyOf(albums, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+    }
+}
@@ -0,0 +1,27 @@
+// Metadata parsing that doesn't depend on Android, so it can be benchmarked and profiled on a plain JVM.
+// Run the benchmarks with: ./gradlew :core:jmh, and the tests with: ./gradlew :core:test
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh
+    // Throughput is in files/sec, and the gc profiler reports allocation per file (gc.alloc.rate.norm)
+    benchmarkMode = listOf("thrpt")
+    timeUnit = "s"
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    resultFormat = "JSON"
+}
@@ -0,0 +1,93 @@
+package landau.smp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Extracts artist, album and title from synthetic files, one file per operation, so throughput is in files/sec.
+ * Run with the gc profiler (the default in build.gradle.kts) to see allocation per file.
+ */
+@State(Scope.Thread)
+public class ID3ExtractorBenchmark {
+    // Files of each kind, the benchmark cycles through them. A power of 2.
+    private static final int kFileCount = 64;
+    // The app's default encoding for non-Unicode tags
+    private static final Charset kAssumedCharset = Charset.forName("windows-1251");
+
+    @Param
+    public TagGenerator.Kind kind;
+
+    private final ID3Extractor extractor = new ID3Extractor();
+    private final PositionedReader[] readers = new PositionedReader[kFileCount];
+    private final String[] filenames = new String[kFileCount];
+    private File dir;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("id3bench").toFile();
+        for (int i = 0; i < kFileCount; i++) {
+            byte[] data = TagGenerator.generate(kind, i);
+            readers[i] = new ByteBufferReader(ByteBuffer.wrap(data));
+            File file = new File(dir, i + ".mp3");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(data);
+            }
+            filenames[i] = file.getPath();
+        }
+        // Fail early if the generator and the parser disagree
+        extractor.extractMetadata(readers[0], kAssumedCharset);
+        if (extractor.getArtist() == null || extractor.getAlbum() == null || extractor.getTitle() == null) {
+            throw new IllegalStateException("Generated " + kind + " tag isn't parsed");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (String filename : filenames) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(filename).delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    /**
+     * Parsing alone, from memory.
+     */
+    @Benchmark
+    public void fromMemory(Blackhole bh) {
+        extractor.extractMetadata(readers[next], kAssumedCharset);
+        next = (next + 1) & (kFileCount - 1);
+        consume(bh);
+    }
+
+    /**
+     * Including opening the file and reading it, from the page cache since the files are read over and over.
+     */
+    @Benchmark
+    public void fromFile(Blackhole bh) {
+        extractor.extractMetadata(filenames[next], kAssumedCharset);
+        next = (next + 1) & (kFileCount - 1);
+        consume(bh);
+    }
+
+    private void consume(Blackhole bh) {
+        bh.consume(extractor.getArtist());
+        bh.consume(extractor.getAlbum());
+        bh.consume(extractor.getTitle());
+    }
+}
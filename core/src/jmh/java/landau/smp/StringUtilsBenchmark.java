@@ -0,0 +1,33 @@
+package landau.smp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The text helpers run for every song shown, and formatTime() every second while playing.
+ */
+@State(Scope.Thread)
+public class StringUtilsBenchmark {
+    private static final String[] kTitles = {
+            "Группа крови", "Осень (Live)", "Звезда по имени Солнце", "Track 01", "Ой, у гаю, при Дунаї",
+            "Bohemian Rhapsody", "Мама, мы все тяжело больны", "Любовь - это не шутка",
+    };
+    private static final int[] kTimes = {0, 999, 61_000, 215_400, 3_599_999, 3_600_000, 7_384_123, 45_000};
+
+    private int next;
+
+    @Benchmark
+    public String transliterate() {
+        String s = kTitles[next];
+        next = (next + 1) & 7;
+        return StringUtils.transliterate(s);
+    }
+
+    @Benchmark
+    public String formatTime() {
+        int timeMs = kTimes[next];
+        next = (next + 1) & 7;
+        return StringUtils.formatTime(timeMs);
+    }
+}
@@ -0,0 +1,288 @@
+package landau.smp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Builds synthetic MP3 files with tags, as inputs for the benchmarks. Files of the same kind differ in their
+ * text, so that a benchmark cycling through them doesn't keep hitting the same branches and strings.
+ */
+class TagGenerator {
+    enum Kind {
+        // ID3v1 only, so the tail of the file is read
+        V1,
+        V22,
+        V23,
+        // UTF-8 text, syncsafe frame sizes
+        V24,
+        // Tag-wide unsynchronization, which is undone byte by byte
+        V23_UNSYNC,
+        V24_EXTENDED_HEADER,
+        // A large picture before the text frames, which has to be skipped
+        V23_APIC,
+        // Non-Unicode Cyrillic text
+        V23_CP1251,
+    }
+
+    // Stands in for the MPEG frames, which the ID3 parser never looks at
+    private static final int kAudioSize = 64 * 1024;
+    private static final int kPictureSize = 512 * 1024;
+    private static final int kPaddingSize = 1024;
+
+    private static final String[] kLatinWords = {
+            "Love", "Night", "Blue", "Song", "River", "Heart", "Dream", "Fire", "Road", "Light", "Rain", "Stone",
+    };
+    private static final String[] kCyrillicWords = {
+            "Осень", "Любовь", "Ночь", "Дорога", "Звезда", "Река", "Песня", "Ветер", "Город", "Солнце", "Моя", "Земля",
+    };
+    private static final Charset kWindows1251 = Charset.forName("windows-1251");
+
+    static byte[] generate(Kind kind, int index) {
+        Random random = new Random(index);
+        boolean cyrillic = kind == Kind.V23_CP1251;
+        String artist = phrase(random, cyrillic, 2);
+        String album = phrase(random, cyrillic, 3);
+        String title = phrase(random, cyrillic, 4);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        switch (kind) {
+            case V1:
+                break;
+            case V22:
+                writeV22(out, random, artist, album, title);
+                break;
+            case V24:
+                writeV24(out, random, artist, album, title, false);
+                break;
+            case V24_EXTENDED_HEADER:
+                writeV24(out, random, artist, album, title, true);
+                break;
+            default:
+                writeV23(out, random, kind, artist, album, title);
+                break;
+        }
+        out.write(new byte[kAudioSize], 0, kAudioSize);
+        if (kind == Kind.V1) {
+            writeV1(out, artist, album, title);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeV1(ByteArrayOutputStream out, String artist, String album, String title) {
+        byte[] tag = new byte[128];
+        tag[0] = 'T';
+        tag[1] = 'A';
+        tag[2] = 'G';
+        putPadded(tag, 3, title);
+        putPadded(tag, 33, artist);
+        putPadded(tag, 63, album);
+        putPadded(tag, 93, "2001");
+        // Genre: none
+        tag[127] = (byte) 0xff;
+        out.write(tag, 0, tag.length);
+    }
+
+    private static void writeV22(ByteArrayOutputStream out, Random random, String artist, String album,
+                                 String title) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeFrameV22(body, "TRK", text(0, String.valueOf(1 + random.nextInt(20))));
+        writeFrameV22(body, "TYE", text(0, String.valueOf(1960 + random.nextInt(60))));
+        writeFrameV22(body, "TP1", text(0, artist));
+        writeFrameV22(body, "TAL", text(0, album));
+        writeFrameV22(body, "TT2", text(0, title));
+        writeFrameV22(body, "COM", comment(random, 0));
+        body.write(new byte[kPaddingSize], 0, kPaddingSize);
+        writeTag(out, 2, 0, body.toByteArray());
+    }
+
+    private static void writeV23(ByteArrayOutputStream out, Random random, Kind kind, String artist, String album,
+                                 String title) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (kind == Kind.V23_APIC) {
+            writeFrame(body, 3, "APIC", picture(random));
+        }
+        writeFrame(body, 3, "TRCK", text(0, String.valueOf(1 + random.nextInt(20))));
+        writeFrame(body, 3, "TYER", text(0, String.valueOf(1960 + random.nextInt(60))));
+        writeFrame(body, 3, "TCON", text(0, "(17)"));
+        if (kind == Kind.V23_CP1251) {
+            writeFrame(body, 3, "TPE1", text(kWindows1251, artist));
+            writeFrame(body, 3, "TALB", text(kWindows1251, album));
+            writeFrame(body, 3, "TIT2", text(kWindows1251, title));
+        } else {
+            // UTF-16 with a BOM, as most taggers write v2.3
+            writeFrame(body, 3, "TPE1", text(1, artist));
+            writeFrame(body, 3, "TALB", text(1, album));
+            writeFrame(body, 3, "TIT2", text(1, title));
+        }
+        writeFrame(body, 3, "COMM", comment(random, 0));
+        if (kind == Kind.V23_UNSYNC) {
+            // Some bytes that need unsynchronization
+            writeFrame(body, 3, "PRIV", picture(random, 4096));
+        }
+        body.write(new byte[kPaddingSize], 0, kPaddingSize);
+        byte[] data = body.toByteArray();
+        if (kind == Kind.V23_UNSYNC) {
+            writeTag(out, 3, 0x80, unsynchronize(data));
+        } else {
+            writeTag(out, 3, 0, data);
+        }
+    }
+
+    private static void writeV24(ByteArrayOutputStream out, Random random, String artist, String album,
+                                 String title, boolean extendedHeader) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int flags = 0;
+        if (extendedHeader) {
+            // 4 - syncsafe size (of the whole extended header), 1 - number of flag bytes, flags, flag data.
+            // The CRC flag (0x20) has its data length, 5, followed by the 35-bit CRC.
+            byte[] header = {0, 0, 0, 12, 1, 0x20, 5, 0, 0, 0, 0, 0};
+            body.write(header, 0, header.length);
+            flags |= 0x40;
+        }
+        writeFrame(body, 4, "TRCK", text(3, (1 + random.nextInt(20)) + "/20"));
+        writeFrame(body, 4, "TDRC", text(3, String.valueOf(1960 + random.nextInt(60))));
+        writeFrame(body, 4, "TPE1", text(3, artist));
+        writeFrame(body, 4, "TALB", text(3, album));
+        writeFrame(body, 4, "TIT2", text(3, title));
+        writeFrame(body, 4, "COMM", comment(random, 3));
+        body.write(new byte[kPaddingSize], 0, kPaddingSize);
+        writeTag(out, 4, flags, body.toByteArray());
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int version, int flags, byte[] body) {
+        byte[] header = {'I', 'D', '3', (byte) version, 0, (byte) flags, 0, 0, 0, 0};
+        putSyncsafe(header, 6, body.length);
+        out.write(header, 0, header.length);
+        out.write(body, 0, body.length);
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, int version, String id, byte[] data) {
+        byte[] header = new byte[10];
+        for (int i = 0; i < 4; i++) {
+            header[i] = (byte) id.charAt(i);
+        }
+        if (version == 4) {
+            putSyncsafe(header, 4, data.length);
+        } else {
+            header[4] = (byte) (data.length >>> 24);
+            header[5] = (byte) (data.length >>> 16);
+            header[6] = (byte) (data.length >>> 8);
+            header[7] = (byte) data.length;
+        }
+        out.write(header, 0, header.length);
+        out.write(data, 0, data.length);
+    }
+
+    private static void writeFrameV22(ByteArrayOutputStream out, String id, byte[] data) {
+        byte[] header = {(byte) id.charAt(0), (byte) id.charAt(1), (byte) id.charAt(2),
+                (byte) (data.length >>> 16), (byte) (data.length >>> 8), (byte) data.length};
+        out.write(header, 0, header.length);
+        out.write(data, 0, data.length);
+    }
+
+    /**
+     * Text frame content in the given ID3 encoding: 0 - ISO-8859-1, 1 - UTF-16 with BOM, 3 - UTF-8.
+     */
+    private static byte[] text(int encoding, String s) {
+        Charset charset = encoding == 1 ? StandardCharsets.UTF_16LE
+                : encoding == 3 ? StandardCharsets.UTF_8
+                : StandardCharsets.ISO_8859_1;
+        byte[] bytes = s.getBytes(charset);
+        int bomSize = encoding == 1 ? 2 : 0;
+        byte[] result = new byte[1 + bomSize + bytes.length];
+        result[0] = (byte) encoding;
+        if (encoding == 1) {
+            result[1] = (byte) 0xff;
+            result[2] = (byte) 0xfe;
+        }
+        System.arraycopy(bytes, 0, result, 1 + bomSize, bytes.length);
+        return result;
+    }
+
+    /**
+     * Text frame content in a legacy charset, which ID3 marks as ISO-8859-1.
+     */
+    private static byte[] text(Charset charset, String s) {
+        byte[] bytes = s.getBytes(charset);
+        byte[] result = new byte[1 + bytes.length];
+        System.arraycopy(bytes, 0, result, 1, bytes.length);
+        return result;
+    }
+
+    private static byte[] comment(Random random, int encoding) {
+        // 1 - encoding, 3 - language, description + \0, text
+        String text = phrase(random, false, 12);
+        byte[] bytes = text.getBytes(encoding == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+        byte[] result = new byte[5 + bytes.length];
+        result[0] = (byte) encoding;
+        result[1] = 'e';
+        result[2] = 'n';
+        result[3] = 'g';
+        System.arraycopy(bytes, 0, result, 5, bytes.length);
+        return result;
+    }
+
+    private static byte[] picture(Random random) {
+        return picture(random, kPictureSize);
+    }
+
+    /**
+     * APIC content with random "image" data, which like real JPEG data has plenty of 0xff bytes.
+     */
+    private static byte[] picture(Random random, int size) {
+        byte[] mime = "image/jpeg".getBytes(StandardCharsets.ISO_8859_1);
+        // 1 - encoding, MIME type + \0, 1 - picture type, description + \0, data
+        byte[] result = new byte[1 + mime.length + 1 + 1 + 1 + size];
+        System.arraycopy(mime, 0, result, 1, mime.length);
+        int offset = 1 + mime.length + 1;
+        // Front cover
+        result[offset] = 3;
+        offset += 2;
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        data[0] = (byte) 0xff;
+        data[1] = (byte) 0xd8;
+        System.arraycopy(data, 0, result, offset, size);
+        return result;
+    }
+
+    /**
+     * Inserts a 0x00 after each 0xff that is followed by 0x00 or a byte that looks like an MPEG sync.
+     */
+    private static byte[] unsynchronize(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + data.length / 64);
+        for (int i = 0; i < data.length; i++) {
+            out.write(data[i]);
+            if ((data[i] & 0xff) == 0xff && (i + 1 == data.length || data[i + 1] == 0 || (data[i + 1] & 0xe0) == 0xe0)) {
+                out.write(0);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String phrase(Random random, boolean cyrillic, int words) {
+        String[] dictionary = cyrillic ? kCyrillicWords : kLatinWords;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i != 0) {
+                sb.append(' ');
+            }
+            sb.append(dictionary[random.nextInt(dictionary.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static void putPadded(byte[] array, int offset, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(bytes, 0, array, offset, Math.min(bytes.length, 30));
+    }
+
+    private static void putSyncsafe(byte[] array, int offset, int value) {
+        array[offset] = (byte) ((value >>> 21) & 0x7f);
+        array[offset + 1] = (byte) ((value >>> 14) & 0x7f);
+        array[offset + 2] = (byte) ((value >>> 7) & 0x7f);
+        array[offset + 3] = (byte) (value & 0x7f);
+    }
+}
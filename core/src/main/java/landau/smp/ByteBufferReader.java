@@ -0,0 +1,37 @@
+package landau.smp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads from a buffer in memory, e.g. a whole file mapped with FileChannel.map().
+ */
+public class ByteBufferReader implements PositionedReader {
+    private final ByteBuffer buffer;
+
+    /**
+     * Reads the remaining bytes of buffer, without changing its position.
+     */
+    public ByteBufferReader(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public long size() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public void readFully(long position, byte[] dst, int offset, int len) throws IOException {
+        if (position < 0 || position + len > buffer.capacity()) {
+            throw new EOFException();
+        }
+        buffer.position((int) position);
+        buffer.get(dst, offset, len);
+    }
+
+    @Override
+    public void close() {
+    }
+}
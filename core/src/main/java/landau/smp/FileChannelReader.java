@@ -0,0 +1,61 @@
+package landau.smp;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file with positioned reads on its FileChannel, which don't move the channel's position.
+ */
+public class FileChannelReader implements PositionedReader {
+    private final FileInputStream stream;
+    private final FileChannel channel;
+    // Wraps the array last read into, most reads go to the same buffer
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+    public FileChannelReader(FileInputStream stream) {
+        this.stream = stream;
+        this.channel = stream.getChannel();
+    }
+
+    public static FileChannelReader open(String filename) throws IOException {
+        return new FileChannelReader(new FileInputStream(filename));
+    }
+
+    /**
+     * The underlying descriptor, e.g. to pass the same open file to MediaMetadataRetriever.
+     */
+    public FileDescriptor getFD() throws IOException {
+        return stream.getFD();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void readFully(long position, byte[] dst, int offset, int len) throws IOException {
+        if (buffer.array() != dst) {
+            buffer = ByteBuffer.wrap(dst);
+        }
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + len);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+}
@@ -0,0 +1,120 @@
+package landau.smp;
+
+import java.io.IOException;
+
+/**
+ * Guesses the container format of a file from its first bytes, so that the right extractor can be picked,
+ * and so that files which aren't audio at all (covers, playlists, text) can be dropped early.
+ * A file that can't be read throws, rather than being UNKNOWN, as the error may be temporary.
+ */
+public class FormatProbe {
+    public enum Format { UNKNOWN, MP3, FLAC, OGG, MP4, WAV, AIFF, AAC, MATROSKA, ASF, AMR, MIDI, APE, WAVPACK }
+
+    private final byte[] header = new byte[12];
+
+    public Format probe(String filename) throws IOException {
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            return probe(reader);
+        }
+    }
+
+    public Format probe(PositionedReader reader) throws IOException {
+        long fileSize = reader.size();
+        if (fileSize < 12) {
+            return Format.UNKNOWN;
+        }
+        reader.readFully(0, header, 0, 12);
+        if (header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+            // Usually MP3, but some taggers put ID3v2 in front of FLAC
+            long tagEnd = 10 + (((header[6] & 0x7f) << 21) | ((header[7] & 0x7f) << 14) |
+                    ((header[8] & 0x7f) << 7) | (header[9] & 0x7f));
+            if (tagEnd + 4 <= fileSize) {
+                reader.readFully(tagEnd, header, 0, 4);
+                if (header[0] == 'f' && header[1] == 'L' && header[2] == 'a' && header[3] == 'C') {
+                    return Format.FLAC;
+                }
+            }
+            return Format.MP3;
+        }
+        if (header[0] == 'f' && header[1] == 'L' && header[2] == 'a' && header[3] == 'C') {
+            return Format.FLAC;
+        }
+        if (header[0] == 'O' && header[1] == 'g' && header[2] == 'g' && header[3] == 'S') {
+            return Format.OGG;
+        }
+        if (header[4] == 'f' && header[5] == 't' && header[6] == 'y' && header[7] == 'p') {
+            return Format.MP4;
+        }
+        if (matches(0, "RIFF") && matches(8, "WAVE")) {
+            return Format.WAV;
+        }
+        if (matches(0, "FORM") && (matches(8, "AIFF") || matches(8, "AIFC"))) {
+            return Format.AIFF;
+        }
+        if (readIntBe(0) == 0x1a45dfa3) {
+            // EBML header of Matroska/WebM (.mka, .webm)
+            return Format.MATROSKA;
+        }
+        if (readIntBe(0) == 0x3026b275 && readIntBe(4) == 0x8e66cf11) {
+            // ASF header object GUID (.wma)
+            return Format.ASF;
+        }
+        if (matches(0, "#!AMR")) {
+            return Format.AMR;
+        }
+        if (matches(0, "MThd")) {
+            return Format.MIDI;
+        }
+        if (matches(0, "MAC ")) {
+            return Format.APE;
+        }
+        if (matches(0, "wvpk")) {
+            return Format.WAVPACK;
+        }
+        if ((header[0] & 0xff) == 0xff && (header[1] & 0xf6) == 0xf0) {
+            // ADTS sync, it has the same 12 bits as MPEG audio, but layer 0
+            return Format.AAC;
+        }
+        int frameLength = MP3DurationProbe.getFrameLength(header, 0);
+        if (frameLength > 0 && frameLength + 4 <= fileSize) {
+            // MPEG audio frame header. Two bytes of sync are easily matched by chance, e.g. by FF FE, the BOM of
+            // UTF-16LE text, so the next frame has to follow, with the same version, layer and sample rate.
+            int b1 = header[1];
+            int b2 = header[2];
+            reader.readFully(frameLength, header, 0, 4);
+            if (MP3DurationProbe.getFrameLength(header, 0) > 0 && ((header[1] ^ b1) & 0xfe) == 0
+                    && ((header[2] ^ b2) & 0x0c) == 0) {
+                return Format.MP3;
+            }
+        }
+        return Format.UNKNOWN;
+    }
+
+    /**
+     * Returns whether the file looks playable. Files we can't recognize are still kept if their
+     * extension says MP3, since MP3 has no container and can start with junk before the first frame.
+     */
+    public boolean isAudio(String filename) throws IOException {
+        if (probe(filename) != Format.UNKNOWN) {
+            return true;
+        }
+        int dot = filename.lastIndexOf('.');
+        return dot >= 0 && filename.regionMatches(true, dot, ".mp3", 0, 4) && dot + 4 == filename.length();
+    }
+
+    private boolean matches(int offset, String magic) {
+        for (int i = 0; i < magic.length(); i++) {
+            if (header[offset + i] != magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readIntBe(int offset) {
+        return ((header[offset] & 0xff) << 24) |
+                ((header[offset + 1] & 0xff) << 16) |
+                ((header[offset + 2] & 0xff) << 8) |
+                (header[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,643 @@
+package landau.smp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Spec: https://mutagen-specs.readthedocs.io/en/latest/id3/index.html
+// Spec: https://web.archive.org/web/20151121080450/http://id3.org/id3v2.3.0
+// AOSP Implementation: https://github.com/cozybit/aosp-frameworks-base/blob/master/media/libstagefright/id3/ID3.cpp
+// AOSP Implementation: https://cs.android.com/android/platform/superproject/main/+/main:frameworks/av/media/module/id3/ID3.cpp
+public class ID3Extractor {
+    // Maximum size of a single frame we read into memory
+    static int kMaxSize = 3 * 1024 * 1024;
+    // Maximum size of an embedded picture frame
+    private static final int kMaxPictureSize = 16 * 1024 * 1024;
+
+    // Frame IDs packed big-endian into an int, so that matching a frame is a single comparison
+    private static final int kFrameTPE1 = ('T' << 24) | ('P' << 16) | ('E' << 8) | '1';
+    private static final int kFrameTALB = ('T' << 24) | ('A' << 16) | ('L' << 8) | 'B';
+    private static final int kFrameTIT2 = ('T' << 24) | ('I' << 16) | ('T' << 8) | '2';
+    private static final int kFrameTP1 = ('T' << 16) | ('P' << 8) | '1';
+    private static final int kFrameTAL = ('T' << 16) | ('A' << 8) | 'L';
+    private static final int kFrameTT2 = ('T' << 16) | ('T' << 8) | '2';
+    private static final int kFrameAPIC = ('A' << 24) | ('P' << 16) | ('I' << 8) | 'C';
+    private static final int kFramePIC = ('P' << 16) | ('I' << 8) | 'C';
+    // Picture type of the front cover in APIC/PIC
+    private static final int kPictureFrontCover = 3;
+
+    private String artist, album, title;
+    private boolean indexFrames;
+    private ID3FrameIndex frameIndex;
+
+    // Charset of non-Unicode text, null to guess it for every string
+    private Charset assumedCharset;
+    // Decoders keep state, so they belong to the extractor instance, which isn't shared between threads
+    private final TextDecoder textDecoder = new TextDecoder();
+
+    // Buffers are reused from file to file, and only grow if a text frame doesn't fit
+    private final ID3TagReader tagReader = new ID3TagReader();
+    private final byte[] header = new byte[10];
+    private final TailTagReader tailReader = new TailTagReader();
+    private byte[] frame = new byte[256];
+    private ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
+    // Output of decompressing a frame
+    private byte[] inflated = new byte[256];
+    private ByteBuffer inflatedBuffer = ByteBuffer.wrap(inflated);
+    private final Inflater inflater = new Inflater();
+
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    /**
+     * If set, the whole ID3v2 tag at the start of the file is walked, and the location of every frame
+     * is recorded in {@link #getFrameIndex()}. Otherwise, parsing stops once the frames we need are found.
+     */
+    public void setIndexFrames(boolean indexFrames) {
+        this.indexFrames = indexFrames;
+    }
+
+    /**
+     * Returns the frames of the ID3v2 tag at the start of the last file, or null if it had none
+     * or indexing is off. The index isn't reused, so it can be kept after extracting the next file.
+     */
+    public ID3FrameIndex getFrameIndex() {
+        return frameIndex;
+    }
+
+    /**
+     * Extracts metadata of the given file, replacing the results of a previous call.
+     * Non-Unicode text is decoded with assumedCharset, or if it's null, with a charset guessed from the text.
+     */
+    public void extractMetadata(String filename, Charset assumedCharset) {
+        artist = null;
+        album = null;
+        title = null;
+        frameIndex = null;
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            extractMetadata(reader, assumedCharset);
+        } catch (IOException e) {
+            // continue
+        }
+    }
+
+    /**
+     * Same as {@link #extractMetadata(String, Charset)}, but reads from the given source.
+     */
+    public void extractMetadata(PositionedReader reader, Charset assumedCharset) {
+        this.assumedCharset = assumedCharset;
+        artist = null;
+        album = null;
+        title = null;
+        frameIndex = null;
+        try {
+            extractV2(reader, indexFrames);
+        } catch (IOException e) {
+            // continue
+        }
+
+        if (artist == null || album == null || title == null) {
+            try {
+                extractTail(reader);
+            } catch (IOException e) {
+                // continue
+            }
+        }
+    }
+
+    private void extractTail(PositionedReader reader) throws IOException {
+        TailTagReader tail = tailReader;
+        tail.read(reader);
+
+        // In order of preference: ID3v2 appended at the end, APEv2, ID3v1
+        int id3V2Offset = tail.getId3V2Offset();
+        if (id3V2Offset >= 0) {
+            byte[] buffer = tail.getBuffer();
+            int flags = buffer[id3V2Offset + 5];
+            int size = tail.getId3V2Size();
+            tagReader.reset(buffer, id3V2Offset + 10, size, false);
+            try {
+                parseV2(4, flags, size, null);
+            } catch (IOException e) {
+                // continue
+            }
+        }
+
+        if (artist == null) {
+            artist = tail.getApeArtist();
+        }
+        if (album == null) {
+            album = tail.getApeAlbum();
+        }
+        if (title == null) {
+            title = tail.getApeTitle();
+        }
+
+        int v1Offset = tail.getId3V1Offset();
+        if (v1Offset >= 0) {
+            // ID3v1 is the last 128 bytes of the file
+            if (title == null) {
+                title = readId3V1String(v1Offset + 3, 30);
+            }
+            if (artist == null) {
+                artist = readId3V1String(v1Offset + 33, 30);
+            }
+            if (album == null) {
+                album = readId3V1String(v1Offset + 63, 30);
+            }
+        }
+    }
+
+    @SuppressWarnings("SameParameterValue")
+    private String readId3V1String(int offset, int len) {
+        return textDecoder.decodeLegacy(tailReader.getBuffer(), offset, len, assumedCharset);
+    }
+
+    /**
+     * Returns the image data of the front cover in the ID3v2 tag at the start of the file, or of its first
+     * picture if there's no front cover, or null if there are no pictures. Replaces the results of a previous call.
+     */
+    public byte[] extractPicture(String filename) {
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            return extractPicture(reader);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public byte[] extractPicture(PositionedReader reader) {
+        // Text frames are still parsed on the way, but their values don't matter here
+        this.assumedCharset = StandardCharsets.ISO_8859_1;
+        artist = null;
+        album = null;
+        title = null;
+        frameIndex = null;
+        try {
+            extractV2(reader, true);
+            ID3FrameIndex index = frameIndex;
+            if (index == null) {
+                return null;
+            }
+            byte[] result = null;
+            for (int i = 0; i < index.size(); i++) {
+                int id = index.getId(i);
+                if (id != kFrameAPIC && id != kFramePIC) {
+                    continue;
+                }
+                ByteBuffer content = loadFrame(reader, index, i, kMaxPictureSize);
+                if (content == null) {
+                    continue;
+                }
+                int type = parsePicture(content, index.getVersion());
+                if (type >= 0 && (result == null || type == kPictureFrontCover)) {
+                    result = new byte[content.remaining()];
+                    content.get(result);
+                    if (type == kPictureFrontCover) {
+                        break;
+                    }
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Positions content at the image data of an APIC/PIC frame, and returns the picture type, or -1 if invalid.
+     */
+    private static int parsePicture(ByteBuffer content, int version) {
+        // 1 - text encoding, MIME type + \0 (v2.2: 3 - image format), 1 - picture type, description + \0, data
+        byte[] array = content.array();
+        int offset = content.position();
+        int end = content.limit();
+        if (offset >= end) {
+            return -1;
+        }
+        int encoding = array[offset++];
+        if (version == 2) {
+            offset += 3;
+        } else {
+            while (offset < end && array[offset] != 0) {
+                offset++;
+            }
+            offset++;
+        }
+        if (offset >= end) {
+            return -1;
+        }
+        int type = array[offset++] & 0xff;
+        if (encoding == 1 || encoding == 2) {
+            // UTF-16 description ends with a 16-bit \0
+            while (offset + 1 < end && (array[offset] != 0 || array[offset + 1] != 0)) {
+                offset += 2;
+            }
+            offset += 2;
+        } else {
+            while (offset < end && array[offset] != 0) {
+                offset++;
+            }
+            offset++;
+        }
+        if (offset >= end) {
+            return -1;
+        }
+        content.position(offset);
+        return type;
+    }
+
+    private void extractV2(PositionedReader reader, boolean indexFrames) throws IOException {
+        byte[] header = this.header;
+        reader.readFully(0, header, 0, 10);
+        if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+            // Not a ID3v2
+            return;
+        }
+        int version = header[3];
+        if (version != 2 && version != 3 && version != 4) {
+            // Bad version
+            return;
+        }
+        int flags = header[5];
+        int size = readUnsynchronizedInt(header, 6);
+        // Tag-wide unsynchronization if bit 7 is set. In v4 it's handled per frame instead.
+        boolean unsync = version != 4 && (flags & 0x80) != 0;
+        tagReader.reset(reader, 10, size, unsync);
+        if (indexFrames) {
+            frameIndex = new ID3FrameIndex(version, unsync);
+        }
+        parseV2(version, flags, size, frameIndex);
+    }
+
+    /**
+     * Parses the body of an ID3v2 tag, which tagReader has to be positioned at.
+     * If index isn't null, all frames are walked and recorded in it.
+     */
+    private void parseV2(int version, int flags, int size, ID3FrameIndex index) throws IOException {
+        byte[] header = this.header;
+        ID3TagReader reader = tagReader;
+        if (version == 2) {
+            // 7 - unsync
+            // 6 - compression
+            // 5-0 - undefined
+            if ((flags & 0x7f) != 0) {
+                // v2.2 doesn't define a compression scheme, the spec says to ignore such tags
+                return;
+            }
+        } else if (version == 3) {
+            // 7 - unsync
+            // 6 - extended header
+            // 5 - experimental
+            // 4-0 - undefined
+            if ((flags & 0x1f) != 0) {
+                return;
+            }
+            // With unsynchronization, the size is an upper bound on the de-unsynchronized size,
+            // which is good enough for the bound checks below.
+            if ((flags & 0x40) != 0) {
+                // Extended header:
+                // 4 bytes - ext header len (length of remaining fields in the ext header)
+                // 2 bytes - ext flags (bit 7 - crc present, others - undefined)
+                // 4 bytes - size of padding
+                // 4 bytes (optional) - crc (if present, included in ext header len)
+                if (size < 4 || !reader.read(header, 0, 4)) {
+                    return;
+                }
+                int extHeaderSize = readIntBe(header, 0) + 4; // including these 4 bytes themselves
+                if (extHeaderSize < 4 || extHeaderSize > size) {
+                    return;
+                }
+                if (extHeaderSize >= 10) {
+                    // padding is present (although it's mandatory according to spec)
+                    if (!reader.read(header, 4, 6)) {
+                        return;
+                    }
+                    int paddingSize = readIntBe(header, 6);
+                    if (paddingSize < 0 || paddingSize > size - extHeaderSize) {
+                        return;
+                    }
+                    size -= paddingSize;
+                }
+                if (!reader.skip(extHeaderSize - reader.getPosition())) {
+                    return;
+                }
+            }
+        } else {
+            // 7 - unsync
+            // 6 - extended header
+            // 5 - experimental
+            // 4 - footer present
+            // 3-0 - undefined
+            if ((flags & 0x40) != 0) {
+                // Extended header
+                if (!reader.read(header, 0, 4)) {
+                    return;
+                }
+                int extHeaderSize = readUnsynchronizedInt(header, 0);
+                if (extHeaderSize < 6 || extHeaderSize > size) {
+                    return;
+                }
+                if (!reader.skip(extHeaderSize - 4)) {
+                    return;
+                }
+            }
+            // A footer, if present, comes after size bytes, so it's never reached
+        }
+
+        int remainingTags = 3;
+        while (remainingTags != 0 || index != null) {
+            int offset = reader.getPosition();
+            if (version == 2) {
+                if (offset + 6 >= size || !reader.read(header, 0, 6)) {
+                    return;
+                }
+                int dataSize = ((header[3] & 0xff) << 16) | ((header[4] & 0xff) << 8) | (header[5] & 0xff);
+                if (offset + 6 + dataSize > size) {
+                    return;
+                }
+                int id = readIntBe(header, 0) >>> 8;
+                if (id == 0) {
+                    break;
+                }
+                long dataStart = reader.getFilePosition();
+                if (artist == null && id == kFrameTP1) {
+                    artist = readTextFrame(reader, version, 0, dataSize);
+                    if (artist != null) remainingTags--;
+                } else if (album == null && id == kFrameTAL) {
+                    album = readTextFrame(reader, version, 0, dataSize);
+                    if (album != null) remainingTags--;
+                } else if (title == null && id == kFrameTT2) {
+                    title = readTextFrame(reader, version, 0, dataSize);
+                    if (title != null) remainingTags--;
+                } else if (!reader.skip(dataSize)) {
+                    return;
+                }
+                if (index != null) {
+                    index.add(id, dataStart, (int) (reader.getFilePosition() - dataStart), 0);
+                }
+            } else {
+                // V3 and V4
+                if (offset + 10 >= size || !reader.read(header, 0, 10)) {
+                    return;
+                }
+                int dataSize;
+                if (version == 3) {
+                    dataSize = readIntBe(header, 4);
+                } else {
+                    dataSize = readUnsynchronizedInt(header, 4);
+                }
+                // Compared so that it doesn't overflow, offset + 10 < size already
+                if (dataSize < 0 || dataSize > size - offset - 10) {
+                    return;
+                }
+                int frameFlags = ((header[8] & 0xff) << 8) | (header[9] & 0xff);
+                int id = readIntBe(header, 0);
+                if (id == 0) {
+                    break;
+                }
+                long dataStart = reader.getFilePosition();
+                if (((version == 3 && (frameFlags & 0x40) != 0)) || (version == 4 && (frameFlags & 0x04) != 0)) {
+                    // Skip unsupported encrypted frame
+                    if (!reader.skip(dataSize)) {
+                        return;
+                    }
+                } else if (artist == null && id == kFrameTPE1) {
+                    artist = readTextFrame(reader, version, frameFlags, dataSize);
+                    if (artist != null) remainingTags--;
+                } else if (album == null && id == kFrameTALB) {
+                    album = readTextFrame(reader, version, frameFlags, dataSize);
+                    if (album != null) remainingTags--;
+                } else if (title == null && id == kFrameTIT2) {
+                    title = readTextFrame(reader, version, frameFlags, dataSize);
+                    if (title != null) remainingTags--;
+                } else if (!reader.skip(dataSize)) {
+                    return;
+                }
+                if (index != null) {
+                    index.add(id, dataStart, (int) (reader.getFilePosition() - dataStart), frameFlags);
+                }
+            }
+        }
+    }
+
+    private String readTextFrame(ID3TagReader reader, int version, int frameFlags, int dataSize) throws IOException {
+        if (dataSize > kMaxSize) {
+            reader.skip(dataSize);
+            return null;
+        }
+        ensureFrameCapacity(dataSize);
+        if (!reader.read(frame, 0, dataSize)) {
+            return null;
+        }
+        ByteBuffer content = frameContent(version, frameFlags, dataSize, kMaxSize);
+        return content == null ? null : textFromBytes(content, content.position(), content.remaining());
+    }
+
+    /**
+     * Reads frame i of index from the file, and returns its content with unsynchronization and compression
+     * undone, or null if it can't be read. For text frames, the first byte is the encoding.
+     */
+    public byte[] readFrame(String filename, ID3FrameIndex index, int i) {
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            ByteBuffer content = loadFrame(reader, index, i, kMaxSize);
+            if (content == null) {
+                return null;
+            }
+            byte[] result = new byte[content.remaining()];
+            content.get(result);
+            return result;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads text frame i of index from the file, decoding non-Unicode text as extractMetadata() does.
+     * Returns null if the frame can't be read or is empty.
+     */
+    public String readTextFrame(String filename, ID3FrameIndex index, int i, Charset assumedCharset) {
+        this.assumedCharset = assumedCharset;
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            ByteBuffer content = loadFrame(reader, index, i, kMaxSize);
+            return content == null ? null : textFromBytes(content, content.position(), content.remaining());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private ByteBuffer loadFrame(PositionedReader reader, ID3FrameIndex index, int i, int maxSize) throws IOException {
+        int size = index.getSize(i);
+        if (size > maxSize) {
+            return null;
+        }
+        ensureFrameCapacity(size);
+        reader.readFully(index.getOffset(i), frame, 0, size);
+        if (index.isUnsync()) {
+            size = fixUnsyncV23(frame, 0, size);
+        }
+        return frameContent(index.getVersion(), index.getFlags(i), size, maxSize);
+    }
+
+    private void ensureFrameCapacity(int size) {
+        if (frame.length < size) {
+            frame = new byte[Math.max(size, frame.length * 2)];
+            frameBuffer = ByteBuffer.wrap(frame);
+        }
+    }
+
+    /**
+     * Undoes the frame-level transformations of the dataSize bytes in frame, and returns the content
+     * as a buffer positioned at it, or null if the frame is invalid or decompresses to more than maxSize.
+     */
+    private ByteBuffer frameContent(int version, int frameFlags, int dataSize, int maxSize) {
+        // Frame flags, v3: %abc00000 %ijk00000, v4: %0abc0000 %0h00kmnp
+        // Extra data before the frame content comes in the order of the flags.
+        int offset = 0;
+        int size = dataSize;
+        boolean compressed = false;
+        int inflatedSize = 0;
+        if (version == 3) {
+            if ((frameFlags & 0x80) != 0) {
+                // Compressed, preceded by the decompressed size
+                if (size < 4) {
+                    return null;
+                }
+                compressed = true;
+                inflatedSize = readIntBe(frame, offset);
+                offset += 4;
+                size -= 4;
+            }
+            if ((frameFlags & 0x20) != 0 && size >= 1) {
+                // Skip group id
+                offset++;
+                size--;
+            }
+        } else if (version == 4) {
+            if ((frameFlags & 0x40) != 0 && size >= 1) {
+                // Skip group id
+                offset++;
+                size--;
+            }
+            if ((frameFlags & 0x01) != 0 && size >= 4) {
+                // Remove data length indicator, which is the size after undoing unsync and compression
+                inflatedSize = readUnsynchronizedInt(frame, offset);
+                offset += 4;
+                size -= 4;
+            }
+            if ((frameFlags & 0x02) != 0) {
+                size = fixUnsyncV23(frame, offset, size);
+            }
+            if ((frameFlags & 0x08) != 0) {
+                // Compression requires a data length indicator
+                if ((frameFlags & 0x01) == 0) {
+                    return null;
+                }
+                compressed = true;
+            }
+        }
+        if (compressed) {
+            if (inflatedSize < 0 || inflatedSize > maxSize) {
+                return null;
+            }
+            int len = inflate(offset, size, inflatedSize);
+            if (len < 0) {
+                return null;
+            }
+            inflatedBuffer.clear();
+            inflatedBuffer.limit(len);
+            return inflatedBuffer;
+        }
+        frameBuffer.clear();
+        frameBuffer.position(offset);
+        frameBuffer.limit(offset + size);
+        return frameBuffer;
+    }
+
+    /**
+     * Decompresses len bytes of frame at offset with zlib, producing at most maxSize bytes.
+     * Returns the decompressed size, or -1 if the data is corrupt.
+     */
+    private int inflate(int offset, int len, int maxSize) {
+        if (inflated.length < maxSize) {
+            inflated = new byte[Math.max(maxSize, inflated.length * 2)];
+            inflatedBuffer = ByteBuffer.wrap(inflated);
+        }
+        inflater.reset();
+        inflater.setInput(frame, offset, len);
+        int size = 0;
+        try {
+            while (size < maxSize && !inflater.finished()) {
+                int n = inflater.inflate(inflated, size, maxSize - size);
+                if (n == 0) {
+                    // Truncated input, or a preset dictionary we don't have. Use what we have.
+                    break;
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+        return size;
+    }
+
+    private int readUnsynchronizedInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 21) |
+                ((buffer[offset + 1] & 0xff) << 14) |
+                ((buffer[offset + 2] & 0xff) << 7) |
+                (buffer[offset + 3] & 0xff);
+    }
+
+    private int readIntBe(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) |
+                ((buffer[offset + 1] & 0xff) << 16) |
+                ((buffer[offset + 2] & 0xff) << 8) |
+                (buffer[offset + 3] & 0xff);
+    }
+
+    private String textFromBytes(ByteBuffer in, int offset, int len) {
+        if (len == 0) return null;
+        byte[] array = in.array();
+        int encodingType = array[offset];
+        offset++;
+        len--;
+        if (encodingType == 0) {
+            // ISO 8859-1, but often something else in practice
+            return textDecoder.decodeLegacy(array, offset, len, assumedCharset);
+        } else if (encodingType == 1) {
+            // UTF-16 with BOM
+            return textDecoder.decode(StandardCharsets.UTF_16, array, offset, len);
+        } else if (encodingType == 2) {
+            // UTF-16BE without BOM
+            return textDecoder.decode(StandardCharsets.UTF_16BE, array, offset, len);
+        } else if (encodingType == 3) {
+            // UTF-8
+            return textDecoder.decode(StandardCharsets.UTF_8, array, offset, len);
+        } else {
+            return null;
+        }
+    }
+
+    int fixUnsyncV23(byte[] buf, int offset, int size) {
+        int i = offset;
+        int end = offset + size;
+        for (int j = offset; j < end; j++) {
+            buf[i++] = buf[j];
+            if (j + 1 < end && (buf[j] & 0xff) == 0xff && buf[j + 1] == 0x00) {
+                j++;
+            }
+        }
+        return i - offset;
+    }
+}
@@ -0,0 +1,92 @@
+package landau.smp;
+
+import java.util.Arrays;
+
+/**
+ * Locations of all the frames in a file's ID3v2 tag, recorded while the tag is parsed once.
+ * Any frame can then be read later with a single positioned read, see {@link ID3Extractor#readFrame}.
+ * <p>
+ * Offsets point at the frame data (after the frame header) as stored in the file, i.e. before undoing
+ * tag-level unsynchronization, so sizes are stored sizes too.
+ */
+public class ID3FrameIndex {
+    private final int version;
+    private final boolean unsync;
+
+    private int count;
+    private int[] ids = new int[16];
+    private long[] offsets = new long[16];
+    private int[] sizes = new int[16];
+    private int[] flags = new int[16];
+
+    ID3FrameIndex(int version, boolean unsync) {
+        this.version = version;
+        this.unsync = unsync;
+    }
+
+    /**
+     * Packs a frame ID such as "TRCK" (or "TRK" for v2.2) into an int, the way IDs are stored in the index.
+     */
+    public static int frameId(String id) {
+        int result = 0;
+        for (int i = 0; i < id.length(); i++) {
+            result = (result << 8) | (id.charAt(i) & 0xff);
+        }
+        return result;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    boolean isUnsync() {
+        return unsync;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the position of the first frame with the given packed ID, or -1.
+     */
+    public int find(int id) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    long getOffset(int i) {
+        return offsets[i];
+    }
+
+    int getSize(int i) {
+        return sizes[i];
+    }
+
+    int getFlags(int i) {
+        return flags[i];
+    }
+
+    void add(int id, long offset, int size, int frameFlags) {
+        if (count == ids.length) {
+            int capacity = count * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+        ids[count] = id;
+        offsets[count] = offset;
+        sizes[count] = size;
+        flags[count] = frameFlags;
+        count++;
+    }
+}
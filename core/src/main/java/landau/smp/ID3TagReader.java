@@ -0,0 +1,180 @@
+package landau.smp;
+
+import java.io.IOException;
+
+/**
+ * Sequential reader over the body of an ID3v2 tag (everything after the 10-byte header).
+ * Data is pulled through a small fixed window, so walking frame headers costs at most one
+ * read per window and skipping a frame we don't need costs no read at all.
+ * <p>
+ * If tag-level unsynchronization is on (v2.2 and v2.3), it's undone on the fly. In that case
+ * logical frame sizes don't map to file offsets, so skipping has to read through the data.
+ * <p>
+ * The tag can also come from a buffer already in memory, e.g. a tag appended at the end of the file.
+ */
+class ID3TagReader {
+    private static final int kWindowSize = 4096;
+
+    private final byte[] window = new byte[kWindowSize];
+    private int windowPos, windowLen;
+
+    // Exactly one of reader and data is set
+    private PositionedReader reader;
+    private byte[] data;
+    // File (or data) offset of window[windowLen]
+    private long filePos;
+    // File offset of the first byte after the tag
+    private long fileEnd;
+    private boolean unsync;
+    // Last byte returned was 0xff, so a following 0x00 is an unsync byte to drop
+    private boolean lastWasFF;
+    // Logical position, i.e. after removing unsync bytes
+    private int position;
+
+    void reset(PositionedReader reader, long start, int size, boolean unsync) {
+        this.reader = reader;
+        this.data = null;
+        reset(start, size, unsync);
+    }
+
+    void reset(byte[] data, int start, int size, boolean unsync) {
+        this.reader = null;
+        this.data = data;
+        reset(start, size, unsync);
+    }
+
+    private void reset(long start, int size, boolean unsync) {
+        this.filePos = start;
+        this.fileEnd = start + size;
+        this.unsync = unsync;
+        this.lastWasFF = false;
+        this.position = 0;
+        windowPos = 0;
+        windowLen = 0;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * Offset in the file (or data) of the next byte to be read, before removing unsync bytes.
+     */
+    long getFilePosition() {
+        return filePos - (windowLen - windowPos);
+    }
+
+    /**
+     * Reads exactly len bytes into dst. Returns false if the tag ends first.
+     */
+    boolean read(byte[] dst, int offset, int len) throws IOException {
+        if (unsync) {
+            return readUnsync(dst, offset, len);
+        }
+        int available = windowLen - windowPos;
+        if (available >= len) {
+            System.arraycopy(window, windowPos, dst, offset, len);
+            windowPos += len;
+            position += len;
+            return true;
+        }
+        if (filePos + len - available > fileEnd) {
+            return false;
+        }
+        System.arraycopy(window, windowPos, dst, offset, available);
+        windowPos = windowLen;
+        offset += available;
+        int remaining = len - available;
+        if (remaining >= kWindowSize) {
+            // Large read, bypass the window
+            readAt(filePos, dst, offset, remaining);
+            filePos += remaining;
+        } else {
+            if (!fill()) {
+                return false;
+            }
+            System.arraycopy(window, 0, dst, offset, remaining);
+            windowPos = remaining;
+        }
+        position += len;
+        return true;
+    }
+
+    /**
+     * Skips len bytes. Returns false if the tag ends first.
+     */
+    boolean skip(int len) throws IOException {
+        if (unsync) {
+            for (int i = 0; i < len; i++) {
+                if (nextUnsyncByte() < 0) {
+                    return false;
+                }
+            }
+            position += len;
+            return true;
+        }
+        int available = windowLen - windowPos;
+        if (available >= len) {
+            windowPos += len;
+        } else {
+            long target = filePos + len - available;
+            if (target > fileEnd) {
+                return false;
+            }
+            // Read from there on the next fill
+            filePos = target;
+            windowPos = 0;
+            windowLen = 0;
+        }
+        position += len;
+        return true;
+    }
+
+    private boolean readUnsync(byte[] dst, int offset, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            int b = nextUnsyncByte();
+            if (b < 0) {
+                return false;
+            }
+            dst[offset + i] = (byte) b;
+        }
+        position += len;
+        return true;
+    }
+
+    private int nextUnsyncByte() throws IOException {
+        while (true) {
+            if (windowPos == windowLen && !fill()) {
+                return -1;
+            }
+            int b = window[windowPos++] & 0xff;
+            if (lastWasFF && b == 0) {
+                // Unsync byte, drop it
+                lastWasFF = false;
+                continue;
+            }
+            lastWasFF = b == 0xff;
+            return b;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int len = (int) Math.min(kWindowSize, fileEnd - filePos);
+        if (len <= 0) {
+            return false;
+        }
+        readAt(filePos, window, 0, len);
+        filePos += len;
+        windowPos = 0;
+        windowLen = len;
+        return true;
+    }
+
+    private void readAt(long position, byte[] dst, int offset, int len) throws IOException {
+        if (reader != null) {
+            reader.readFully(position, dst, offset, len);
+        } else {
+            System.arraycopy(data, (int) position, dst, offset, len);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package landau.smp;
+
+import java.io.IOException;
+
+// Spec: http://www.mp3-tech.org/programmer/frame_header.html
+// Xing/Info and VBRI headers: https://www.codeproject.com/Articles/8295/MPEG-Audio-Frame-Header
+/**
+ * Computes MP3 duration from the first MPEG audio frame after the ID3v2 tag. Uses the frame
+ * count from a Xing/Info or VBRI header if present, otherwise assumes constant bitrate.
+ * Reads at most two small blocks from the beginning of the file.
+ */
+public class MP3DurationProbe {
+    // How far after the ID3v2 tag to look for the first frame
+    private static final int kSearchSize = 8192;
+
+    // [version][layer][index] in kbps, version 0 - MPEG1, 1 - MPEG2/2.5; layer 0 - Layer I, 1 - II, 2 - III
+    private static final int[][][] kBitrates = {
+            {
+                    {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+                    {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            },
+            {
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+            },
+    };
+    // [version bits][index], version bits 0 - MPEG2.5, 1 - reserved, 2 - MPEG2, 3 - MPEG1
+    private static final int[][] kSampleRates = {
+            {11025, 12000, 8000},
+            {0, 0, 0},
+            {22050, 24000, 16000},
+            {44100, 48000, 32000},
+    };
+
+    private final byte[] buffer = new byte[kSearchSize];
+
+    // Fields of the last parsed frame header
+    private int versionBits, layer, bitrate, sampleRate, samplesPerFrame, frameLength;
+    private boolean mono;
+
+    /**
+     * Returns the duration in ms, or -1 if this doesn't look like an MPEG audio file.
+     */
+    public int getDurationMs(String filename) {
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            return getDurationMs(reader);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the duration in ms, or -1 if this doesn't look like an MPEG audio file.
+     */
+    public int getDurationMs(PositionedReader reader) {
+        try {
+            return computeDurationMs(reader);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private int computeDurationMs(PositionedReader reader) throws IOException {
+        long fileSize = reader.size();
+        long audioStart = 0;
+        if (fileSize >= 10) {
+            reader.readFully(0, buffer, 0, 10);
+            if (buffer[0] == 'I' && buffer[1] == 'D' && buffer[2] == '3') {
+                int size = ((buffer[6] & 0x7f) << 21) | ((buffer[7] & 0x7f) << 14) |
+                        ((buffer[8] & 0x7f) << 7) | (buffer[9] & 0x7f);
+                audioStart = 10 + size;
+                if (buffer[3] == 4 && (buffer[5] & 0x10) != 0) {
+                    // v2.4 footer
+                    audioStart += 10;
+                }
+            }
+        }
+        if (audioStart >= fileSize) {
+            return -1;
+        }
+
+        int len = (int) Math.min(kSearchSize, fileSize - audioStart);
+        reader.readFully(audioStart, buffer, 0, len);
+        int frameStart = findFirstFrame(len);
+        if (frameStart < 0) {
+            return -1;
+        }
+
+        int frames = readVbrFrameCount(frameStart, len);
+        if (frames > 0) {
+            return (int) ((long) frames * samplesPerFrame * 1000 / sampleRate);
+        }
+        // Constant bitrate. We don't bother excluding a possible ID3v1 tag, it's a few ms at most.
+        long audioBytes = fileSize - audioStart - frameStart;
+        return (int) (audioBytes * 8 / bitrate);
+    }
+
+    private int findFirstFrame(int len) {
+        for (int i = 0; i + 4 <= len; i++) {
+            if (!parseHeader(i)) {
+                continue;
+            }
+            // Random data can look like a frame header, so require the next frame to match, if it's in the buffer
+            int next = i + frameLength;
+            if (next + 4 <= len) {
+                int version = versionBits, sampleRate = this.sampleRate, layer = this.layer;
+                if (!parseHeader(next) || versionBits != version || this.sampleRate != sampleRate || this.layer != layer) {
+                    continue;
+                }
+                // Restore the fields of the first frame
+                parseHeader(i);
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private boolean parseHeader(int offset) {
+        int length = getFrameLength(buffer, offset);
+        if (length < 0) {
+            return false;
+        }
+        int b1 = buffer[offset + 1] & 0xff;
+        int b2 = buffer[offset + 2] & 0xff;
+        int b3 = buffer[offset + 3] & 0xff;
+        versionBits = (b1 >> 3) & 3;
+        layer = 4 - ((b1 >> 1) & 3);
+        boolean mpeg1 = versionBits == 3;
+        bitrate = kBitrates[mpeg1 ? 0 : 1][layer - 1][(b2 >> 4) & 0xf];
+        sampleRate = kSampleRates[versionBits][(b2 >> 2) & 3];
+        mono = ((b3 >> 6) & 3) == 3;
+        samplesPerFrame = layer == 1 ? 384 : layer == 2 || mpeg1 ? 1152 : 576;
+        frameLength = length;
+        return true;
+    }
+
+    /**
+     * Returns the length of the MPEG audio frame whose 4-byte header is at offset, or -1 if it's not a frame
+     * header, or has reserved values or free format bitrate.
+     */
+    static int getFrameLength(byte[] array, int offset) {
+        int b1 = array[offset + 1] & 0xff;
+        int b2 = array[offset + 2] & 0xff;
+        if ((array[offset] & 0xff) != 0xff || (b1 & 0xe0) != 0xe0) {
+            return -1;
+        }
+        int versionBits = (b1 >> 3) & 3;
+        int layerBits = (b1 >> 1) & 3;
+        int bitrateIndex = (b2 >> 4) & 0xf;
+        int sampleRateIndex = (b2 >> 2) & 3;
+        if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            // Reserved values, or free format which we can't compute duration for
+            return -1;
+        }
+        int layer = 4 - layerBits;
+        boolean mpeg1 = versionBits == 3;
+        int bitrate = kBitrates[mpeg1 ? 0 : 1][layer - 1][bitrateIndex];
+        int sampleRate = kSampleRates[versionBits][sampleRateIndex];
+        int padding = (b2 >> 1) & 1;
+        if (layer == 1) {
+            return (12 * bitrate * 1000 / sampleRate + padding) * 4;
+        } else if (layer == 2 || mpeg1) {
+            return 144 * bitrate * 1000 / sampleRate + padding;
+        } else {
+            return 72 * bitrate * 1000 / sampleRate + padding;
+        }
+    }
+
+    /**
+     * Returns the frame count from the Xing/Info or VBRI header in the given frame, or -1 if absent.
+     */
+    private int readVbrFrameCount(int frameStart, int len) {
+        // Xing/Info comes after the side information
+        int sideInfoSize = versionBits == 3 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+        int offset = frameStart + 4 + sideInfoSize;
+        if (offset + 12 <= len && (matches(offset, "Xing") || matches(offset, "Info"))) {
+            int flags = readIntBe(offset + 4);
+            if ((flags & 0x01) != 0) {
+                return readIntBe(offset + 8);
+            }
+            return -1;
+        }
+        // VBRI is always at 32 bytes after the frame header
+        offset = frameStart + 4 + 32;
+        if (offset + 18 <= len && matches(offset, "VBRI")) {
+            return readIntBe(offset + 14);
+        }
+        return -1;
+    }
+
+    private boolean matches(int offset, String magic) {
+        for (int i = 0; i < magic.length(); i++) {
+            if (buffer[offset + i] != magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readIntBe(int offset) {
+        return ((buffer[offset] & 0xff) << 24) |
+                ((buffer[offset + 1] & 0xff) << 16) |
+                ((buffer[offset + 2] & 0xff) << 8) |
+                (buffer[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,280 @@
+package landau.smp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Spec: https://developer.apple.com/documentation/quicktime-file-format
+// iTunes metadata: https://mutagen.readthedocs.io/en/latest/api/mp4.html
+/**
+ * Extracts iTunes-style metadata and duration from MP4/M4A/M4B files. Walks the box tree with seeks,
+ * reading only box headers, mvhd and the text items of ilst. In particular, mdat is never read,
+ * and moov is found wherever it is in the file.
+ */
+public class MP4Extractor {
+    // Text items larger than this are ignored
+    private static final int kMaxItemSize = 64 * 1024;
+    // Cover art larger than this is ignored
+    private static final int kMaxPictureSize = 16 * 1024 * 1024;
+    // Maximum box nesting we follow (moov/udta/meta/ilst/item/data)
+    private static final int kMaxDepth = 6;
+
+    private static final int kBoxMoov = fourcc('m', 'o', 'o', 'v');
+    private static final int kBoxMvhd = fourcc('m', 'v', 'h', 'd');
+    private static final int kBoxUdta = fourcc('u', 'd', 't', 'a');
+    private static final int kBoxMeta = fourcc('m', 'e', 't', 'a');
+    private static final int kBoxIlst = fourcc('i', 'l', 's', 't');
+    private static final int kBoxData = fourcc('d', 'a', 't', 'a');
+    private static final int kItemName = fourcc(0xa9, 'n', 'a', 'm');
+    private static final int kItemArtist = fourcc(0xa9, 'A', 'R', 'T');
+    private static final int kItemAlbum = fourcc(0xa9, 'a', 'l', 'b');
+    private static final int kItemCover = fourcc('c', 'o', 'v', 'r');
+
+    private String artist, album, title;
+    private int durationMs;
+    // Set while looking for cover art, which is only read on request
+    private boolean readPicture;
+    private byte[] picture;
+
+    private final byte[] header = new byte[32];
+    private byte[] buffer = new byte[256];
+
+    // Size and type of the last box header read, and the header's own size
+    private long boxSize;
+    private int boxType;
+    private int boxHeaderSize;
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns the duration in ms, or -1 if unknown.
+     */
+    public int getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * Extracts metadata of the given file, replacing the results of a previous call.
+     * Returns false if no moov box was found.
+     */
+    public boolean extractMetadata(String filename) {
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            return extractMetadata(reader);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Same as {@link #extractMetadata(String)}, but reads from the given source.
+     */
+    public boolean extractMetadata(PositionedReader reader) {
+        readPicture = false;
+        return extract(reader);
+    }
+
+    /**
+     * Returns the image data of the first covr item of the given file, or null if there's none.
+     * Replaces the results of a previous call.
+     */
+    public byte[] extractPicture(String filename) {
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            return extractPicture(reader);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public byte[] extractPicture(PositionedReader reader) {
+        readPicture = true;
+        picture = null;
+        extract(reader);
+        readPicture = false;
+        byte[] result = picture;
+        picture = null;
+        return result;
+    }
+
+    private boolean extract(PositionedReader reader) {
+        artist = null;
+        album = null;
+        title = null;
+        durationMs = -1;
+        try {
+            long fileSize = reader.size();
+            long offset = 0;
+            while (readBoxHeader(reader, offset, fileSize)) {
+                if (boxType == kBoxMoov) {
+                    walkContainer(reader, offset + boxHeaderSize, offset + boxSize, 1);
+                    return true;
+                }
+                // Skip everything else, in particular mdat
+                offset += boxSize;
+            }
+            return false;
+        } catch (IOException e) {
+            return artist != null || album != null || title != null || durationMs >= 0;
+        }
+    }
+
+    private void walkContainer(PositionedReader reader, long offset, long end, int depth) throws IOException {
+        while (readBoxHeader(reader, offset, end)) {
+            long next = offset + boxSize;
+            long dataStart = offset + boxHeaderSize;
+            int type = boxType;
+            if (type == kBoxMvhd) {
+                readMvhd(reader, dataStart, next);
+            } else if (depth < kMaxDepth && (type == kBoxUdta || type == kBoxIlst)) {
+                walkContainer(reader, dataStart, next, depth + 1);
+            } else if (depth < kMaxDepth && type == kBoxMeta) {
+                // meta is a full box with 4 bytes of version and flags, but QuickTime files omit them
+                if (dataStart + 4 <= next) {
+                    reader.readFully(dataStart, header, 0, 4);
+                    if (readIntBe(header, 0) == 0) {
+                        dataStart += 4;
+                    }
+                }
+                walkContainer(reader, dataStart, next, depth + 1);
+            } else if (type == kItemName || type == kItemArtist || type == kItemAlbum) {
+                String value = readTextItem(reader, dataStart, next);
+                if (type == kItemName && title == null) {
+                    title = value;
+                } else if (type == kItemArtist && artist == null) {
+                    artist = value;
+                } else if (type == kItemAlbum && album == null) {
+                    album = value;
+                }
+            } else if (readPicture && type == kItemCover && picture == null) {
+                picture = readPictureItem(reader, dataStart, next);
+            }
+            offset = next;
+        }
+    }
+
+    private void readMvhd(PositionedReader reader, long offset, long end) throws IOException {
+        // 1 - version, 3 - flags, then for version 0: 4 - creation time, 4 - modification time, 4 - timescale,
+        // 4 - duration; for version 1: 8 - creation time, 8 - modification time, 4 - timescale, 8 - duration
+        int len = (int) Math.min(32, end - offset);
+        if (len < 20) {
+            return;
+        }
+        reader.readFully(offset, header, 0, len);
+        long timescale, duration;
+        if (header[0] == 1) {
+            if (len < 32) {
+                return;
+            }
+            timescale = readIntBe(header, 20) & 0xffffffffL;
+            duration = readLongBe(header, 24);
+        } else {
+            timescale = readIntBe(header, 12) & 0xffffffffL;
+            duration = readIntBe(header, 16) & 0xffffffffL;
+            if (duration == 0xffffffffL) {
+                // Unknown duration
+                return;
+            }
+        }
+        if (timescale != 0 && duration > 0) {
+            durationMs = (int) Math.min(Integer.MAX_VALUE, duration * 1000 / timescale);
+        }
+    }
+
+    private String readTextItem(PositionedReader reader, long offset, long end) throws IOException {
+        // The value is in a data box: 4 - type (1 - UTF-8, 2 - UTF-16BE), 4 - locale, then the value
+        if (!readBoxHeader(reader, offset, end) || boxType != kBoxData) {
+            return null;
+        }
+        long dataSize = boxSize - boxHeaderSize;
+        if (dataSize < 8 || dataSize > kMaxItemSize) {
+            return null;
+        }
+        int len = (int) dataSize;
+        if (buffer.length < len) {
+            buffer = new byte[Math.max(len, buffer.length * 2)];
+        }
+        reader.readFully(offset + boxHeaderSize, buffer, 0, len);
+        int type = readIntBe(buffer, 0) & 0xffffff;
+        String s;
+        if (type == 1 || type == 0) {
+            s = new String(buffer, 8, len - 8, StandardCharsets.UTF_8);
+        } else if (type == 2) {
+            s = new String(buffer, 8, len - 8, StandardCharsets.UTF_16BE);
+        } else {
+            return null;
+        }
+        s = s.trim();
+        return s.isEmpty() ? null : s;
+    }
+
+    private byte[] readPictureItem(PositionedReader reader, long offset, long end) throws IOException {
+        // Same as a text item, with type 13 - JPEG, 14 - PNG, 27 - BMP
+        if (!readBoxHeader(reader, offset, end) || boxType != kBoxData) {
+            return null;
+        }
+        long dataSize = boxSize - boxHeaderSize;
+        if (dataSize <= 8 || dataSize > kMaxPictureSize) {
+            return null;
+        }
+        reader.readFully(offset + boxHeaderSize, header, 0, 8);
+        int type = readIntBe(header, 0) & 0xffffff;
+        if (type != 13 && type != 14 && type != 27) {
+            return null;
+        }
+        byte[] result = new byte[(int) dataSize - 8];
+        reader.readFully(offset + boxHeaderSize + 8, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Reads the header of the box at offset, which has to fit before end. Returns false if there's no valid box.
+     */
+    private boolean readBoxHeader(PositionedReader reader, long offset, long end) throws IOException {
+        // 4 - size (0 - till end of file, 1 - 64-bit size follows), 4 - type, [8 - 64-bit size]
+        if (offset + 8 > end) {
+            return false;
+        }
+        reader.readFully(offset, header, 0, 8);
+        long size = readIntBe(header, 0) & 0xffffffffL;
+        boxType = readIntBe(header, 4);
+        boxHeaderSize = 8;
+        if (size == 1) {
+            if (offset + 16 > end) {
+                return false;
+            }
+            reader.readFully(offset + 8, header, 8, 8);
+            size = readLongBe(header, 8);
+            boxHeaderSize = 16;
+        } else if (size == 0) {
+            size = end - offset;
+        }
+        if (size < boxHeaderSize || offset + size > end) {
+            return false;
+        }
+        boxSize = size;
+        return true;
+    }
+
+    private static int fourcc(int a, int b, int c, int d) {
+        return (a << 24) | (b << 16) | (c << 8) | d;
+    }
+
+    private static int readIntBe(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) |
+                ((buffer[offset + 1] & 0xff) << 16) |
+                ((buffer[offset + 2] & 0xff) << 8) |
+                (buffer[offset + 3] & 0xff);
+    }
+
+    private static long readLongBe(byte[] buffer, int offset) {
+        return ((long) readIntBe(buffer, offset) << 32) | (readIntBe(buffer, offset + 4) & 0xffffffffL);
+    }
+}
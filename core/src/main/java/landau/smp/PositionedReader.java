@@ -0,0 +1,18 @@
+package landau.smp;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Random access source of bytes that metadata parsers read from, so that they don't care whether the data
+ * comes from a file, a file descriptor, memory or a MediaDataSource. Reads don't have a current position,
+ * so one reader can be shared by several parsers looking at the same file.
+ */
+public interface PositionedReader extends Closeable {
+    long size() throws IOException;
+
+    /**
+     * Reads exactly len bytes at position into dst. Throws EOFException if the source ends first.
+     */
+    void readFully(long position, byte[] dst, int offset, int len) throws IOException;
+}
@@ -0,0 +1,116 @@
+package landau.smp;
+
+import java.util.Arrays;
+
+/**
+ * A seeded random permutation of [0, size) that is computed per position instead of stored: a Feistel network
+ * over the next power of 4, with cycle walking to stay below size. Both directions take O(1) time and memory.
+ * <p>
+ * Growing the permutation appends a block for the new positions, shuffled among themselves, so the existing
+ * positions keep their indices. Each block has its own keys, derived from the seed.
+ */
+public class ShuffleOrder {
+    private static final int kRounds = 4;
+
+    private final long seed;
+    // Start of every block, the last one ends at size
+    private int[] blockStarts = new int[4];
+    private int blockCount;
+    private int size;
+
+    public ShuffleOrder(long seed, int size) {
+        this.seed = seed;
+        extend(size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Grows the permutation to newSize, see the class comment.
+     */
+    public void extend(int newSize) {
+        if (newSize <= size) {
+            return;
+        }
+        if (blockCount == blockStarts.length) {
+            blockStarts = Arrays.copyOf(blockStarts, blockCount * 2);
+        }
+        blockStarts[blockCount++] = size;
+        size = newSize;
+    }
+
+    /**
+     * Returns the index at position.
+     */
+    public int get(int position) {
+        int block = findBlock(position);
+        int start = blockStarts[block];
+        return start + permute(block, position - start, blockSize(block), false);
+    }
+
+    /**
+     * Returns the position of index, the inverse of get().
+     */
+    public int indexOf(int index) {
+        int block = findBlock(index);
+        int start = blockStarts[block];
+        return start + permute(block, index - start, blockSize(block), true);
+    }
+
+    private int findBlock(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+        }
+        // Blocks map a range of positions to the same range of indices, so this works both ways
+        int block = Arrays.binarySearch(blockStarts, 0, blockCount, position);
+        return block >= 0 ? block : -block - 2;
+    }
+
+    private int blockSize(int block) {
+        return (block + 1 < blockCount ? blockStarts[block + 1] : size) - blockStarts[block];
+    }
+
+    private int permute(int block, int x, int n, boolean inverse) {
+        // Half of the bits of the smallest power of 4 that holds n, so at most 3 of 4 values need another walk
+        int halfBits = 1;
+        while (1L << (2 * halfBits) < n) {
+            halfBits++;
+        }
+        int mask = (1 << halfBits) - 1;
+        long key = mix(seed + 0x9E3779B97F4A7C15L * (block + 1));
+        do {
+            int left = x >>> halfBits;
+            int right = x & mask;
+            for (int round = 0; round < kRounds; round++) {
+                int k = (int) (key >>> (16 * (inverse ? kRounds - 1 - round : round)));
+                if (!inverse) {
+                    int next = left ^ (round(right, k) & mask);
+                    left = right;
+                    right = next;
+                } else {
+                    int previous = right ^ (round(left, k) & mask);
+                    right = left;
+                    left = previous;
+                }
+            }
+            x = (left << halfBits) | right;
+        } while (x >= n);
+        return x;
+    }
+
+    private static int round(int value, int key) {
+        int h = (value ^ key) * 0x45D9F3B;
+        h ^= h >>> 16;
+        h *= 0x45D9F3B;
+        return h ^ (h >>> 16);
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,56 @@
+package landau.smp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Text helpers for displaying metadata that don't depend on Android, so they can be benchmarked on a plain JVM.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class StringUtils {
+    public static String formatTime(int timeMs) {
+        int time = (timeMs + 999) / 1000;   // sec, round up
+        String sec = String.format("%02d", time % 60);
+        time /= 60;  // min
+        String min = String.format("%02d", time % 60);
+        time /= 60;  // hour
+        String hour = "";
+        if (time != 0) {
+            hour = String.valueOf(time) + ":";
+        }
+        return hour + min + ":" + sec;
+    }
+
+    private static final Map<Character, String> transliterationMap = new HashMap<>();
+
+    static {
+        char[] abcRus = {'а','б','в','г','д','е','ё','ж','з','и','й','к','л','м','н','о','п','р','с','т','у','ф','х','ц','ч','ш','щ','ъ','ы','ь','э','ю','я',
+                'ґ','є','і','ї'};
+        String[] abcEng = {"a","b","v","g","d","e","e","zh","z","i","y","k","l","m","n","o","p","r","s","t","u","f","h","ts","ch","sh","sh'","","y","","e","yu","ya",
+                "g","ye","i","yi"};
+        for (int i = 0; i < abcRus.length; i++) {
+            transliterationMap.put(abcRus[i], abcEng[i]);
+            String upcase = "";
+            if (!abcEng[i].isEmpty()) {
+                upcase = String.valueOf(abcEng[i].charAt(0)).toUpperCase() + abcEng[i].substring(1);
+            }
+            transliterationMap.put(String.valueOf(abcRus[i]).toUpperCase().charAt(0), upcase);
+        }
+    }
+
+    /**
+     * Replaces Cyrillic letters with Latin ones, for displays that can't show Cyrillic, e.g. in cars.
+     */
+    public static String transliterate(String s) {
+        StringBuilder builder = new StringBuilder(s.length() + 10);
+        for (int i = 0; i < s.length(); i++) {
+            String replacement = transliterationMap.get(s.charAt(i));
+            if (replacement != null) {
+                builder.append(replacement);
+            } else {
+                builder.append(s.charAt(i));
+            }
+        }
+        return builder.toString();
+    }
+}
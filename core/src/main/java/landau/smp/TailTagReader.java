@@ -0,0 +1,198 @@
+package landau.smp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// APEv2 spec: https://wiki.hydrogenaud.io/index.php?title=APEv2_specification
+// ID3v2.4 footer: https://mutagen-specs.readthedocs.io/en/latest/id3/id3v2.4.0-structure.html#id3v2-footer
+/**
+ * Finds the tags that live at the end of a file: ID3v1, APEv2 and an appended ID3v2.4 tag (with a "3DI" footer).
+ * The end of the file is read once into a fixed buffer, and everything is located and parsed from that buffer.
+ * Tags that don't fully fit in the buffer are ignored.
+ */
+class TailTagReader {
+    static final int kTailSize = 16 * 1024;
+    private static final int kId3V1Size = 128;
+    private static final int kApeFooterSize = 32;
+    private static final int kId3V2FooterSize = 10;
+
+    private final byte[] buffer = new byte[kTailSize];
+    // Number of valid bytes in buffer, which end at the end of the file
+    private int length;
+
+    // Offsets in buffer, -1 if the tag isn't present
+    private int id3V1Offset;
+    private int id3V2Offset;
+    private int id3V2Size;
+
+    private String apeArtist, apeAlbum, apeTitle;
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Offset of the ID3v1 tag in the buffer, or -1.
+     */
+    int getId3V1Offset() {
+        return id3V1Offset;
+    }
+
+    /**
+     * Offset of the appended ID3v2 tag's header in the buffer, or -1.
+     */
+    int getId3V2Offset() {
+        return id3V2Offset;
+    }
+
+    /**
+     * Size of the appended ID3v2 tag, excluding header and footer.
+     */
+    int getId3V2Size() {
+        return id3V2Size;
+    }
+
+    String getApeArtist() {
+        return apeArtist;
+    }
+
+    String getApeAlbum() {
+        return apeAlbum;
+    }
+
+    String getApeTitle() {
+        return apeTitle;
+    }
+
+    void read(PositionedReader reader) throws IOException {
+        id3V1Offset = -1;
+        id3V2Offset = -1;
+        id3V2Size = 0;
+        apeArtist = null;
+        apeAlbum = null;
+        apeTitle = null;
+
+        long fileSize = reader.size();
+        length = (int) Math.min(kTailSize, fileSize);
+        reader.readFully(fileSize - length, buffer, 0, length);
+
+        // Other tags come before ID3v1, if it's present
+        int end = length;
+        if (length >= kId3V1Size && matches(length - kId3V1Size, "TAG")) {
+            id3V1Offset = length - kId3V1Size;
+            end = id3V1Offset;
+        }
+        if (end >= kApeFooterSize && matches(end - kApeFooterSize, "APETAGEX")) {
+            parseApe(end - kApeFooterSize);
+        } else if (end >= kId3V2FooterSize && matches(end - kId3V2FooterSize, "3DI")) {
+            findId3V2(end - kId3V2FooterSize);
+        }
+    }
+
+    private void findId3V2(int footerOffset) {
+        // Footer is the same as header, but with "3DI": 3 - "3DI", 1 - version, 1 - revision, 1 - flags, 4 - size
+        if (buffer[footerOffset + 3] != 4) {
+            return;
+        }
+        int size = readSyncsafeInt(footerOffset + 6);
+        int headerOffset = footerOffset - size - 10;
+        if (size < 0 || headerOffset < 0) {
+            // Doesn't fit in the buffer
+            return;
+        }
+        if (!matches(headerOffset, "ID3") || buffer[headerOffset + 3] != 4 || readSyncsafeInt(headerOffset + 6) != size) {
+            return;
+        }
+        id3V2Offset = headerOffset;
+        id3V2Size = size;
+    }
+
+    private void parseApe(int footerOffset) {
+        // Footer: 8 - "APETAGEX", 4 - version, 4 - tag size (items and footer, not header), 4 - item count,
+        // 4 - flags, 8 - reserved. All numbers are little endian.
+        int tagSize = readIntLe(footerOffset + 12);
+        int itemCount = readIntLe(footerOffset + 16);
+        int offset = footerOffset + kApeFooterSize - tagSize;
+        if (tagSize < kApeFooterSize || offset < 0) {
+            // Doesn't fit in the buffer
+            return;
+        }
+        // Each item: 4 - value size, 4 - flags, key, \0, value
+        for (int i = 0; i < itemCount && offset + 8 < footerOffset; i++) {
+            int valueSize = readIntLe(offset);
+            int flags = readIntLe(offset + 4);
+            int keyStart = offset + 8;
+            int keyEnd = keyStart;
+            while (keyEnd < footerOffset && buffer[keyEnd] != 0) {
+                keyEnd++;
+            }
+            int valueStart = keyEnd + 1;
+            // Not valueStart + valueSize, which overflows for a large size
+            if (valueSize < 0 || valueSize > footerOffset - valueStart) {
+                return;
+            }
+            // Bits 1-2 of flags: 0 - UTF-8 text, 1 - binary, 2 - external link
+            if (((flags >> 1) & 3) == 0) {
+                int keyLen = keyEnd - keyStart;
+                if (apeArtist == null && matchesKey(keyStart, keyLen, "ARTIST")) {
+                    apeArtist = readApeValue(valueStart, valueSize);
+                } else if (apeAlbum == null && matchesKey(keyStart, keyLen, "ALBUM")) {
+                    apeAlbum = readApeValue(valueStart, valueSize);
+                } else if (apeTitle == null && matchesKey(keyStart, keyLen, "TITLE")) {
+                    apeTitle = readApeValue(valueStart, valueSize);
+                }
+            }
+            offset = valueStart + valueSize;
+        }
+    }
+
+    private String readApeValue(int offset, int len) {
+        // Multiple values are separated by \0, use the first one
+        int end = offset;
+        while (end < offset + len && buffer[end] != 0) {
+            end++;
+        }
+        String s = new String(buffer, offset, end - offset, StandardCharsets.UTF_8).trim();
+        return s.isEmpty() ? null : s;
+    }
+
+    private boolean matchesKey(int offset, int len, String key) {
+        if (len != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            int c = buffer[offset + i];
+            if (c >= 'a' && c <= 'z') {
+                // Keys are case-insensitive ASCII
+                c -= 'a' - 'A';
+            }
+            if (c != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(int offset, String magic) {
+        for (int i = 0; i < magic.length(); i++) {
+            if (buffer[offset + i] != magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readSyncsafeInt(int offset) {
+        return ((buffer[offset] & 0xff) << 21) |
+                ((buffer[offset + 1] & 0xff) << 14) |
+                ((buffer[offset + 2] & 0xff) << 7) |
+                (buffer[offset + 3] & 0xff);
+    }
+
+    private int readIntLe(int offset) {
+        return (buffer[offset] & 0xff) |
+                ((buffer[offset + 1] & 0xff) << 8) |
+                ((buffer[offset + 2] & 0xff) << 16) |
+                ((buffer[offset + 3] & 0xff) << 24);
+    }
+}
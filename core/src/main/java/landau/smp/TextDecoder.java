@@ -0,0 +1,250 @@
+package landau.smp;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// UTF-8 DFA: https://bjoern.hoehrmann.de/utf-8/decoder/dfa/
+/**
+ * Decodes tag text without exceptions. Text in legacy 8-bit encodings goes through an ASCII fast path,
+ * then a UTF-8 validity check, and only then is decoded with the assumed charset, or with one guessed
+ * from the bytes themselves if there's none.
+ * <p>
+ * Keeps decoders and buffers, so an instance must not be shared between threads.
+ */
+public class TextDecoder {
+    private static final Charset kWindows1251 = Charset.forName("windows-1251");
+    private static final Charset kKoi8R = Charset.forName("KOI8-R");
+    private static final Charset kWindows1252 = Charset.forName("windows-1252");
+
+    // Byte classes of the UTF-8 DFA
+    private static final byte[] kUtf8Classes = new byte[256];
+    // Transitions of the UTF-8 DFA, indexed by state + class. 0 - accept, 12 - reject (which never changes).
+    private static final byte[] kUtf8Transitions = {
+            0, 12, 24, 36, 60, 96, 84, 12, 12, 12, 48, 72, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12,
+            12, 0, 12, 12, 12, 12, 12, 0, 12, 0, 12, 12, 12, 24, 12, 12, 12, 12, 12, 24, 12, 24, 12, 12,
+            12, 12, 12, 12, 12, 12, 12, 24, 12, 12, 12, 12, 12, 24, 12, 12, 12, 12, 12, 12, 12, 24, 12, 12,
+            12, 12, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12, 12, 36, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12,
+            12, 36, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12,
+    };
+
+    // Russian letters and their frequencies in a typical text, in 0.1%
+    private static final String kCyrillicLetters = "оеаинтсрвлкмдпуяыьгзбчйхжшюцщэфъё";
+    private static final int[] kCyrillicFrequencies = {
+            110, 85, 80, 74, 67, 63, 55, 47, 45, 44, 35, 32, 30, 28, 26, 20, 19, 17, 17, 17, 16, 14, 12, 10, 9, 7, 6,
+            5, 4, 3, 3, 1, 1,
+    };
+    // For bytes 0x80-0xff, the frequency of the letter (in any case) the byte is in the charset
+    private static final int[] kFrequenciesIn1251 = letterFrequencies(kWindows1251);
+    private static final int[] kFrequenciesInKoi8R = letterFrequencies(kKoi8R);
+
+    static {
+        fillClasses(0x80, 0x8f, 1);
+        fillClasses(0x90, 0x9f, 9);
+        fillClasses(0xa0, 0xbf, 7);
+        fillClasses(0xc0, 0xc1, 8);
+        fillClasses(0xc2, 0xdf, 2);
+        fillClasses(0xe0, 0xe0, 10);
+        fillClasses(0xe1, 0xec, 3);
+        fillClasses(0xed, 0xed, 4);
+        fillClasses(0xee, 0xef, 3);
+        fillClasses(0xf0, 0xf0, 11);
+        fillClasses(0xf1, 0xf3, 6);
+        fillClasses(0xf4, 0xf4, 5);
+        fillClasses(0xf5, 0xff, 8);
+    }
+
+    private final Map<Charset, CharsetDecoder> decoders = new HashMap<>();
+    private final CharsetEncoder windows1252Encoder = kWindows1252.newEncoder();
+    // Wraps the array last passed to decode()
+    private ByteBuffer in = ByteBuffer.allocate(0);
+    private ByteBuffer encoded = ByteBuffer.allocate(256);
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    /**
+     * Decodes len bytes of array at offset, and returns them trimmed, or null if the result is empty
+     * or the bytes are invalid in this charset.
+     */
+    public String decode(Charset charset, byte[] array, int offset, int len) {
+        if (in.array() != array) {
+            in = ByteBuffer.wrap(array);
+        }
+        ensureCharsCapacity(len);
+        in.clear();
+        in.position(offset);
+        in.limit(offset + len);
+        chars.clear();
+        CharsetDecoder decoder = getDecoder(charset);
+        decoder.reset();
+        if (decoder.decode(in, chars, true).isError() || decoder.flush(chars).isError()) {
+            return null;
+        }
+        return trim(chars.array(), chars.position());
+    }
+
+    /**
+     * Decodes text in an unknown 8-bit encoding, and returns it trimmed, or null if it's empty.
+     * Valid UTF-8 is taken as UTF-8, anything else is decoded with assumedCharset, or if it's null,
+     * with the charset {@link #classify} guesses.
+     */
+    public String decodeLegacy(byte[] array, int offset, int len, Charset assumedCharset) {
+        if (isAscii(array, offset, len)) {
+            // Same chars in all the charsets we may use, so no need for a decoder
+            ensureCharsCapacity(len);
+            char[] c = chars.array();
+            for (int i = 0; i < len; i++) {
+                c[i] = (char) array[offset + i];
+            }
+            return trim(c, len);
+        }
+        if (isValidUtf8(array, offset, len)) {
+            return decode(StandardCharsets.UTF_8, array, offset, len);
+        }
+        Charset charset = assumedCharset != null ? assumedCharset : classify(array, offset, len);
+        String result = decode(charset, array, offset, len);
+        // Bytes undefined in the charset (e.g. 0x98 in windows-1251), fall back to a charset where all bytes are valid
+        return result != null ? result : decode(StandardCharsets.ISO_8859_1, array, offset, len);
+    }
+
+    /**
+     * Android decodes non-Unicode tags as windows-1252. Recovers their original bytes, and decodes them
+     * as {@link #decodeLegacy} does. Returns s itself if it's ASCII or can't come from windows-1252.
+     */
+    public String reinterpretWindows1252(String s, Charset assumedCharset) {
+        int len = s.length();
+        char bits = 0;
+        for (int i = 0; i < len; i++) {
+            bits |= s.charAt(i);
+        }
+        if (bits < 0x80) {
+            return s;
+        }
+        // windows-1252 has a single byte per char
+        if (encoded.capacity() < len) {
+            encoded = ByteBuffer.allocate(Math.max(len, encoded.capacity() * 2));
+        }
+        encoded.clear();
+        windows1252Encoder.reset();
+        CoderResult result = windows1252Encoder.encode(CharBuffer.wrap(s), encoded, true);
+        if (result.isError() || windows1252Encoder.flush(encoded).isError()) {
+            // Not representable in windows-1252, so it was decoded as something else
+            return s;
+        }
+        String decoded = decodeLegacy(encoded.array(), 0, encoded.position(), assumedCharset);
+        return decoded != null ? decoded : s;
+    }
+
+    public static boolean isAscii(byte[] array, int offset, int len) {
+        int bits = 0;
+        for (int i = offset; i < offset + len; i++) {
+            bits |= array[i];
+        }
+        return bits >= 0;
+    }
+
+    /**
+     * Checks UTF-8 validity with a DFA, one table lookup per byte and no branches on the data.
+     */
+    public static boolean isValidUtf8(byte[] array, int offset, int len) {
+        int state = 0;
+        for (int i = offset; i < offset + len; i++) {
+            state = kUtf8Transitions[state + kUtf8Classes[array[i] & 0xff]];
+        }
+        return state == 0;
+    }
+
+    /**
+     * Guesses the 8-bit encoding of non-ASCII text from its byte frequencies:
+     * windows-1251 or KOI8-R for Cyrillic, windows-1252 or ISO-8859-1 for Western European.
+     * Between the Cyrillic ones, it picks the one in which the text is made of more frequent letters.
+     */
+    public static Charset classify(byte[] array, int offset, int len) {
+        int high = 0, asciiLetters = 0, score1251 = 0, scoreKoi8R = 0;
+        boolean c1Undefined = false, c1Defined = false;
+        for (int i = offset; i < offset + len; i++) {
+            int b = array[i] & 0xff;
+            if (b < 0x80) {
+                if ((b | 0x20) >= 'a' && (b | 0x20) <= 'z') {
+                    asciiLetters++;
+                }
+                continue;
+            }
+            high++;
+            score1251 += kFrequenciesIn1251[b - 0x80];
+            scoreKoi8R += kFrequenciesInKoi8R[b - 0x80];
+            if (b < 0xa0) {
+                // Undefined in windows-1252, C1 controls in ISO-8859-1
+                if (b == 0x81 || b == 0x8d || b == 0x8f || b == 0x90 || b == 0x9d) {
+                    c1Undefined = true;
+                } else {
+                    c1Defined = true;
+                }
+            }
+        }
+        // In Cyrillic text most letters are high bytes, while in Western text accented letters are the exception
+        if (high > asciiLetters) {
+            return scoreKoi8R > score1251 ? kKoi8R : kWindows1251;
+        }
+        return c1Undefined && !c1Defined ? StandardCharsets.ISO_8859_1 : kWindows1252;
+    }
+
+    private void ensureCharsCapacity(int len) {
+        // None of the charsets produces more chars than there are bytes
+        if (chars.capacity() < len) {
+            chars = CharBuffer.allocate(Math.max(len, chars.capacity() * 2));
+        }
+    }
+
+    private CharsetDecoder getDecoder(Charset charset) {
+        CharsetDecoder decoder = decoders.get(charset);
+        if (decoder == null) {
+            decoder = charset.newDecoder();
+            decoders.put(charset, decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * Same as String.trim(), which also removes \0 padding at the end.
+     */
+    private static String trim(char[] array, int end) {
+        int start = 0;
+        while (start < end && array[start] <= ' ') {
+            start++;
+        }
+        while (end > start && array[end - 1] <= ' ') {
+            end--;
+        }
+        return start == end ? null : new String(array, start, end - start);
+    }
+
+    private static void fillClasses(int from, int to, int value) {
+        for (int i = from; i <= to; i++) {
+            kUtf8Classes[i] = (byte) value;
+        }
+    }
+
+    private static int[] letterFrequencies(Charset charset) {
+        byte[] bytes = new byte[128];
+        for (int i = 0; i < 128; i++) {
+            bytes[i] = (byte) (0x80 + i);
+        }
+        // Single byte charsets, so chars map to bytes one to one
+        String s = new String(bytes, charset).toLowerCase(Locale.ROOT);
+        int[] result = new int[128];
+        for (int i = 0; i < 128 && i < s.length(); i++) {
+            int letter = kCyrillicLetters.indexOf(s.charAt(i));
+            if (letter >= 0) {
+                result[i] = kCyrillicFrequencies[letter];
+            }
+        }
+        return result;
+    }
+}
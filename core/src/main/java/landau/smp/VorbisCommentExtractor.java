@@ -0,0 +1,398 @@
+package landau.smp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// FLAC spec: https://xiph.org/flac/format.html
+// Ogg spec: https://xiph.org/ogg/doc/framing.html
+// Vorbis comment spec: https://xiph.org/vorbis/doc/v-comment.html
+// Opus in Ogg: https://www.rfc-editor.org/rfc/rfc7845
+/**
+ * Extracts Vorbis comments and duration from FLAC and Ogg Vorbis/Opus files. Only metadata is read:
+ * FLAC metadata blocks, the first two Ogg packets, and for Ogg, the last page header for its granule position.
+ */
+public class VorbisCommentExtractor {
+    // Comments are parsed from at most this many bytes, anything beyond (usually cover art) is ignored
+    private static final int kMaxCommentSize = 256 * 1024;
+    // How far from the end of an Ogg file to look for the last page
+    private static final int kMaxTailSize = 64 * 1024;
+    // Pictures larger than this are ignored
+    private static final int kMaxPictureSize = 16 * 1024 * 1024;
+
+    private static final int kFlacStreamInfo = 0;
+    private static final int kFlacVorbisComment = 4;
+    private static final int kFlacPicture = 6;
+    // Picture type of the front cover in the PICTURE block
+    private static final int kPictureFrontCover = 3;
+
+    private String artist, album, title;
+    private int durationMs;
+
+    // State of the Ogg stream being parsed
+    private boolean opus;
+    private int sampleRate, preSkip;
+
+    private final byte[] header = new byte[34];
+    private final byte[] segments = new byte[255];
+    private byte[] buffer = new byte[4096];
+    private int bufferLen;
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns the duration in ms, or -1 if unknown.
+     */
+    public int getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * Extracts metadata of the given file, replacing the results of a previous call.
+     * Returns false if it's not a FLAC or Ogg file.
+     */
+    public boolean extractMetadata(String filename) {
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            return extractMetadata(reader);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Same as {@link #extractMetadata(String)}, but reads from the given source.
+     */
+    public boolean extractMetadata(PositionedReader reader) {
+        artist = null;
+        album = null;
+        title = null;
+        durationMs = -1;
+        try {
+            long start = readMagic(reader);
+            if (start < 0) {
+                return false;
+            }
+            if (header[0] == 'f' && header[1] == 'L' && header[2] == 'a' && header[3] == 'C') {
+                extractFlac(reader, start + 4);
+                return true;
+            }
+            if (start == 0 && header[0] == 'O' && header[1] == 'g' && header[2] == 'g' && header[3] == 'S') {
+                return extractOgg(reader);
+            }
+            return false;
+        } catch (IOException e) {
+            // Truncated or unreadable, return whatever was found so far
+            return artist != null || album != null || title != null || durationMs >= 0;
+        }
+    }
+
+    /**
+     * Returns the image data of the front cover of a FLAC file, or of its first picture if there's no front cover,
+     * or null if there are no pictures. Pictures in Ogg files (METADATA_BLOCK_PICTURE comments) aren't supported.
+     */
+    public byte[] extractPicture(String filename) {
+        try (PositionedReader reader = FileChannelReader.open(filename)) {
+            return extractPicture(reader);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public byte[] extractPicture(PositionedReader reader) {
+        try {
+            long start = readMagic(reader);
+            if (start < 0 || header[0] != 'f' || header[1] != 'L' || header[2] != 'a' || header[3] != 'C') {
+                return null;
+            }
+            return extractFlacPicture(reader, start + 4);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the first 4 bytes of the stream into header, skipping an ID3v2 tag before it,
+     * and returns their offset, or -1 if the file is too short.
+     */
+    private long readMagic(PositionedReader reader) throws IOException {
+        long fileSize = reader.size();
+        if (fileSize < 10) {
+            return -1;
+        }
+        reader.readFully(0, header, 0, 10);
+        long start = 0;
+        if (header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+            // Some taggers put ID3v2 in front of FLAC
+            start = 10 + (((header[6] & 0x7f) << 21) | ((header[7] & 0x7f) << 14) |
+                    ((header[8] & 0x7f) << 7) | (header[9] & 0x7f));
+            if (start + 4 > fileSize) {
+                return -1;
+            }
+            reader.readFully(start, header, 0, 4);
+        }
+        return start;
+    }
+
+    private byte[] extractFlacPicture(PositionedReader reader, long offset) throws IOException {
+        byte[] result = null;
+        long fileSize = reader.size();
+        while (offset + 4 <= fileSize) {
+            reader.readFully(offset, header, 0, 4);
+            boolean last = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7f;
+            int length = ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            offset += 4;
+            if (type == kFlacPicture && length >= 32) {
+                // 4 - picture type, 4 - MIME length, MIME, 4 - description length, description,
+                // 4 - width, 4 - height, 4 - color depth, 4 - colors used, 4 - data length, data
+                long end = offset + length;
+                reader.readFully(offset, header, 0, 8);
+                int pictureType = readIntBe(header, 0);
+                long position = offset + 8 + (readIntBe(header, 4) & 0xffffffffL);
+                if (position + 4 <= end) {
+                    reader.readFully(position, header, 0, 4);
+                    position += 4 + (readIntBe(header, 0) & 0xffffffffL) + 16;
+                }
+                if (position + 4 <= end) {
+                    reader.readFully(position, header, 0, 4);
+                    int dataSize = readIntBe(header, 0);
+                    position += 4;
+                    if (dataSize > 0 && dataSize <= kMaxPictureSize && position + dataSize <= end
+                            && (result == null || pictureType == kPictureFrontCover)) {
+                        result = new byte[dataSize];
+                        reader.readFully(position, result, 0, dataSize);
+                        if (pictureType == kPictureFrontCover) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (last) {
+                break;
+            }
+            offset += length;
+        }
+        return result;
+    }
+
+    private void extractFlac(PositionedReader reader, long offset) throws IOException {
+        // Each block: 1 bit - last block flag, 7 bits - type, 24 bits - length
+        boolean foundInfo = false, foundComments = false;
+        long fileSize = reader.size();
+        while (!(foundInfo && foundComments) && offset + 4 <= fileSize) {
+            reader.readFully(offset, header, 0, 4);
+            boolean last = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7f;
+            int length = ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            offset += 4;
+            if (type == kFlacStreamInfo && length >= 34) {
+                reader.readFully(offset, header, 0, 34);
+                // 20 bits - sample rate, 3 bits - channels, 5 bits - bits per sample, 36 bits - total samples
+                int sampleRate = ((header[10] & 0xff) << 12) | ((header[11] & 0xff) << 4) | ((header[12] & 0xff) >> 4);
+                long totalSamples = ((long) (header[13] & 0x0f) << 32) | (readIntBe(header, 14) & 0xffffffffL);
+                if (sampleRate != 0 && totalSamples != 0) {
+                    durationMs = (int) (totalSamples * 1000 / sampleRate);
+                }
+                foundInfo = true;
+            } else if (type == kFlacVorbisComment) {
+                int len = Math.min(length, kMaxCommentSize);
+                ensureCapacity(len);
+                reader.readFully(offset, buffer, 0, len);
+                parseComments(0, len);
+                foundComments = true;
+            }
+            if (last) {
+                break;
+            }
+            offset += length;
+        }
+    }
+
+    private boolean extractOgg(PositionedReader reader) throws IOException {
+        // First packet is the identification header, second one has the comments.
+        // Packets are accumulated at the start of the buffer, up to kMaxCommentSize bytes.
+        bufferLen = 0;
+        long offset = 0;
+        int packet = 0;
+        int packetEnd = 0;
+        int serial = 0;
+        long fileSize = reader.size();
+        while (packet < 2 && offset + 27 <= fileSize) {
+            // 4 - "OggS", 1 - version, 1 - header type, 8 - granule position, 4 - serial,
+            // 4 - page sequence, 4 - crc, 1 - segment count, then segment table
+            reader.readFully(offset, header, 0, 27);
+            if (header[0] != 'O' || header[1] != 'g' || header[2] != 'g' || header[3] != 'S') {
+                break;
+            }
+            if (offset == 0) {
+                serial = readIntLe(header, 14);
+            }
+            int segmentCount = header[26] & 0xff;
+            reader.readFully(offset + 27, segments, 0, segmentCount);
+            int bodySize = 0;
+            for (int i = 0; i < segmentCount; i++) {
+                bodySize += segments[i] & 0xff;
+            }
+            int len = Math.min(bodySize, kMaxCommentSize - bufferLen);
+            ensureCapacity(bufferLen + len);
+            reader.readFully(offset + 27 + segmentCount, buffer, bufferLen, len);
+            bufferLen += len;
+            offset += 27 + segmentCount + bodySize;
+
+            for (int i = 0; i < segmentCount && packet < 2; i++) {
+                int segmentSize = segments[i] & 0xff;
+                packetEnd += segmentSize;
+                if (segmentSize == 255) {
+                    // Packet continues in the next segment
+                    continue;
+                }
+                int end = Math.min(packetEnd, bufferLen);
+                if (packet == 0 && !parseIdHeader(end)) {
+                    return false;
+                } else if (packet == 1) {
+                    if (opus && end >= 8 && matches(0, "OpusTags")) {
+                        parseComments(8, end);
+                    } else if (!opus && end >= 7 && matches(0, "\u0003vorbis")) {
+                        parseComments(7, end);
+                    }
+                }
+                packet++;
+                // Move the rest of the page to the start of the buffer
+                System.arraycopy(buffer, end, buffer, 0, bufferLen - end);
+                bufferLen -= end;
+                packetEnd -= end;
+            }
+        }
+        if (packet == 0) {
+            return false;
+        }
+        long granule = readLastGranule(reader, serial);
+        if (granule > preSkip && sampleRate > 0) {
+            durationMs = (int) ((granule - preSkip) * 1000 / sampleRate);
+        }
+        return true;
+    }
+
+    private boolean parseIdHeader(int end) {
+        if (end >= 16 && matches(0, "\u0001vorbis")) {
+            // 7 - "\1vorbis", 4 - version, 1 - channels, 4 - sample rate
+            opus = false;
+            sampleRate = readIntLe(buffer, 12);
+            preSkip = 0;
+            return true;
+        } else if (end >= 16 && matches(0, "OpusHead")) {
+            // 8 - "OpusHead", 1 - version, 1 - channels, 2 - pre-skip, 4 - input sample rate
+            opus = true;
+            // Opus granule position is always at 48 kHz, regardless of the input sample rate
+            sampleRate = 48000;
+            preSkip = ((buffer[11] & 0xff) << 8) | (buffer[10] & 0xff);
+            return true;
+        }
+        // Some other codec, e.g. FLAC or Speex in Ogg
+        return false;
+    }
+
+    private long readLastGranule(PositionedReader reader, int serial) throws IOException {
+        long fileSize = reader.size();
+        int len = (int) Math.min(kMaxTailSize, fileSize);
+        ensureCapacity(len);
+        reader.readFully(fileSize - len, buffer, 0, len);
+        for (int i = len - 27; i >= 0; i--) {
+            if (matches(i, "OggS") && buffer[i + 4] == 0 && readIntLe(buffer, i + 14) == serial) {
+                return (readIntLe(buffer, i + 6) & 0xffffffffL) | ((long) readIntLe(buffer, i + 10) << 32);
+            }
+        }
+        return -1;
+    }
+
+    private void parseComments(int offset, int end) {
+        // 4 - vendor length, vendor, 4 - comment count, then for each comment: 4 - length, "KEY=value" in UTF-8
+        if (offset + 4 > end) {
+            return;
+        }
+        offset += 4 + readIntLe(buffer, offset);
+        if (offset < 0 || offset + 4 > end) {
+            return;
+        }
+        int count = readIntLe(buffer, offset);
+        offset += 4;
+        for (int i = 0; i < count && offset + 4 <= end; i++) {
+            int len = readIntLe(buffer, offset);
+            offset += 4;
+            if (len < 0 || offset + len > end) {
+                // Truncated by kMaxCommentSize
+                return;
+            }
+            if (artist == null && matchesKey(offset, len, "ARTIST=")) {
+                artist = readValue(offset + 7, len - 7);
+            } else if (album == null && matchesKey(offset, len, "ALBUM=")) {
+                album = readValue(offset + 6, len - 6);
+            } else if (title == null && matchesKey(offset, len, "TITLE=")) {
+                title = readValue(offset + 6, len - 6);
+            }
+            offset += len;
+        }
+    }
+
+    private boolean matchesKey(int offset, int len, String key) {
+        if (len < key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            int c = buffer[offset + i];
+            if (c >= 'a' && c <= 'z') {
+                // Keys are case-insensitive ASCII
+                c -= 'a' - 'A';
+            }
+            if (c != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readValue(int offset, int len) {
+        String s = new String(buffer, offset, len, StandardCharsets.UTF_8).trim();
+        return s.isEmpty() ? null : s;
+    }
+
+    private boolean matches(int offset, String magic) {
+        for (int i = 0; i < magic.length(); i++) {
+            if (buffer[offset + i] != magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int size) {
+        if (buffer.length < size) {
+            byte[] newBuffer = new byte[Math.max(size, buffer.length * 2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, bufferLen);
+            buffer = newBuffer;
+        }
+    }
+
+    private static int readIntBe(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) |
+                ((buffer[offset + 1] & 0xff) << 16) |
+                ((buffer[offset + 2] & 0xff) << 8) |
+                (buffer[offset + 3] & 0xff);
+    }
+
+    private static int readIntLe(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) |
+                ((buffer[offset + 1] & 0xff) << 8) |
+                ((buffer[offset + 2] & 0xff) << 16) |
+                ((buffer[offset + 3] & 0xff) << 24);
+    }
+}
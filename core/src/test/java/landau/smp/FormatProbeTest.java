@@ -0,0 +1,85 @@
+package landau.smp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class FormatProbeTest {
+    // MPEG-1 Layer III, 128 kbps, 44100 Hz, no padding: 417 bytes per frame
+    private static final byte[] kFrameHeader = {(byte) 0xff, (byte) 0xfb, (byte) 0x90, 0x64};
+    private static final int kFrameLength = 417;
+
+    private final FormatProbe probe = new FormatProbe();
+
+    @Test
+    public void recognizesMpegFrames() throws IOException {
+        assertEquals(FormatProbe.Format.MP3, probe(frames(3)));
+    }
+
+    @Test
+    public void recognizesId3() throws IOException {
+        byte[] tag = {'I', 'D', '3', 3, 0, 0, 0, 0, 0, 10, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertEquals(FormatProbe.Format.MP3, probe(concat(tag, frames(1))));
+    }
+
+    @Test
+    public void rejectsUtf16Text() throws IOException {
+        // FF FE 23 00 reads as an MPEG-1 Layer I frame header
+        String text = "#EXTM3U\r\n#EXTINF:123,Artist - Title\r\nTitle.mp3\r\n".repeat(20);
+        byte[] bytes = concat(new byte[]{(byte) 0xff, (byte) 0xfe}, text.getBytes(StandardCharsets.UTF_16LE));
+        assertEquals(FormatProbe.Format.UNKNOWN, probe(bytes));
+    }
+
+    @Test
+    public void rejectsLoneFrameHeader() throws IOException {
+        byte[] bytes = frames(1);
+        assertEquals(FormatProbe.Format.UNKNOWN, probe(bytes));
+        // The next frame differs in sample rate
+        bytes = frames(2);
+        bytes[kFrameLength + 2] = (byte) 0x94;
+        assertEquals(FormatProbe.Format.UNKNOWN, probe(bytes));
+        // Reserved bitrate index
+        bytes = frames(2);
+        bytes[2] = (byte) 0xf0;
+        assertEquals(FormatProbe.Format.UNKNOWN, probe(bytes));
+    }
+
+    @Test
+    public void recognizesOtherContainers() throws IOException {
+        assertEquals(FormatProbe.Format.FLAC, probe(padded("fLaC")));
+        assertEquals(FormatProbe.Format.OGG, probe(padded("OggS")));
+        assertEquals(FormatProbe.Format.WAV, probe(padded("RIFF\0\0\0\0WAVE")));
+        assertEquals(FormatProbe.Format.UNKNOWN, probe(padded("\u0089PNG")));
+        assertEquals(FormatProbe.Format.UNKNOWN, probe(new byte[4]));
+    }
+
+    private FormatProbe.Format probe(byte[] bytes) throws IOException {
+        return probe.probe(new ByteBufferReader(ByteBuffer.wrap(bytes)));
+    }
+
+    private static byte[] frames(int count) {
+        byte[] bytes = new byte[count * kFrameLength];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(kFrameHeader, 0, bytes, i * kFrameLength, kFrameHeader.length);
+        }
+        return bytes;
+    }
+
+    private static byte[] padded(String magic) {
+        return Arrays.copyOf(magic.getBytes(StandardCharsets.ISO_8859_1), 64);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
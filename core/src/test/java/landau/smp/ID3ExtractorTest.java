@@ -0,0 +1,332 @@
+package landau.smp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ID3ExtractorTest {
+    // Stands in for the MPEG frames, which the ID3 parser never looks at
+    private static final byte[] kAudio = new byte[2048];
+
+    private final ID3Extractor extractor = new ID3Extractor();
+
+    @Test
+    public void readsV22() {
+        byte[] body = concat(
+                frameV22("TP1", text(0, "Artist")),
+                frameV22("TAL", text(0, "Album")),
+                frameV22("TT2", text(0, "Title")));
+        extract(tag(2, 0, body), kAudio);
+        assertTags("Artist", "Album", "Title");
+    }
+
+    @Test
+    public void readsV23() {
+        byte[] body = concat(
+                frame(3, "TRCK", text(0, "3")),
+                frame(3, "TPE1", text(1, "Артист")),
+                frame(3, "TALB", text(1, "Album")),
+                frame(3, "TIT2", text(0, "Title")),
+                new byte[100]);
+        extract(tag(3, 0, body), kAudio);
+        assertTags("Артист", "Album", "Title");
+    }
+
+    @Test
+    public void readsUnsynchronizedV23() {
+        // Private data full of 0xff, larger than the reader's window, and UTF-16 text starting with the BOM
+        // 0xff 0xfe, so there are unsync bytes in and between the frames
+        byte[] priv = new byte[6000];
+        for (int i = 0; i < priv.length; i++) {
+            priv[i] = (byte) (i % 3 == 0 ? 0xff : i % 3 == 1 ? 0 : 0xe0);
+        }
+        byte[] body = concat(
+                frame(3, "PRIV", priv),
+                frame(3, "TPE1", text(1, "Ärtist")),
+                frame(3, "TALB", text(1, "Album")),
+                frame(3, "TIT2", text(1, "Title ÿ")));
+        byte[] unsynchronized = unsynchronize(body);
+        assertTrue(unsynchronized.length > body.length + priv.length / 4);
+        extract(tag(3, 0x80, unsynchronized), kAudio);
+        assertTags("Ärtist", "Album", "Title ÿ");
+    }
+
+    @Test
+    public void skipsV23ExtendedHeader() {
+        byte[] frames = concat(
+                frame(3, "TPE1", text(0, "Artist")),
+                frame(3, "TALB", text(0, "Album")),
+                frame(3, "TIT2", text(0, "Title")));
+        // 4 - size of the rest, 2 - flags, 4 - padding size
+        byte[] extendedHeader = {0, 0, 0, 6, 0, 0, 0, 0, 0, 64};
+        extract(tag(3, 0x40, concat(extendedHeader, frames, new byte[64])), kAudio);
+        assertTags("Artist", "Album", "Title");
+
+        // With a CRC
+        extendedHeader = new byte[]{0, 0, 0, 10, (byte) 0x80, 0, 0, 0, 0, 0, 1, 2, 3, 4};
+        extract(tag(3, 0x40, concat(extendedHeader, frames)), kAudio);
+        assertTags("Artist", "Album", "Title");
+    }
+
+    @Test
+    public void skipsV24ExtendedHeader() {
+        // 4 - syncsafe size of the whole extended header, 1 - number of flag bytes, flags, flag data.
+        // The CRC flag (0x20) has its data length, 5, followed by the 35-bit CRC.
+        byte[] extendedHeader = {0, 0, 0, 12, 1, 0x20, 5, 0, 0, 0, 0, 0};
+        byte[] body = concat(extendedHeader,
+                frame(4, "TPE1", text(3, "Artist")),
+                frame(4, "TALB", text(3, "Albüm")),
+                frame(4, "TIT2", text(3, "Title")));
+        extract(tag(4, 0x40, body), kAudio);
+        assertTags("Artist", "Albüm", "Title");
+    }
+
+    @Test
+    public void readsV24WithFooter() {
+        byte[] body = concat(
+                frame(4, "TPE1", text(3, "Artist")),
+                frame(4, "TALB", text(3, "Album")),
+                frame(4, "TIT2", text(3, "Title")));
+        extract(tag(4, 0x10, body), footer(0x10, body.length), kAudio);
+        assertTags("Artist", "Album", "Title");
+    }
+
+    @Test
+    public void readsAppendedV24() {
+        byte[] body = concat(
+                frame(4, "TPE1", text(3, "Artist")),
+                frame(4, "TALB", text(3, "Album")),
+                frame(4, "TIT2", text(3, "Title")));
+        extract(kAudio, tag(4, 0x10, body), footer(0x10, body.length));
+        assertTags("Artist", "Album", "Title");
+    }
+
+    @Test
+    public void prefersAppendedV24ToV1() {
+        byte[] body = frame(4, "TIT2", text(3, "Title"));
+        extract(kAudio, tag(4, 0x10, body), footer(0x10, body.length), id3V1("V1 Title", "V1 Artist", "V1 Album"));
+        assertTags("V1 Artist", "V1 Album", "Title");
+    }
+
+    @Test
+    public void ignoresAppendedV24WithMismatchedFooter() {
+        byte[] body = frame(4, "TIT2", text(3, "Title"));
+        extract(kAudio, tag(4, 0x10, body), footer(0x10, body.length + 1));
+        assertTags(null, null, null);
+    }
+
+    @Test
+    public void readsV1() {
+        extract(kAudio, id3V1("Title", "Artist", "Album"));
+        assertTags("Artist", "Album", "Title");
+    }
+
+    @Test
+    public void stopsAtFramePastTagEnd() {
+        byte[] artist = frame(3, "TPE1", text(0, "Artist"));
+        byte[] album = frame(3, "TALB", text(0, "Album"));
+        byte[] title = frame(3, "TIT2", text(0, "Title"));
+        // Album claims one byte more than the tag has
+        byte[] body = concat(artist, title, album);
+        putIntBe(body, artist.length + title.length + 4, album.length - 10 + 1);
+        extract(tag(3, 0, body), kAudio);
+        assertTags("Artist", null, "Title");
+    }
+
+    @Test
+    public void stopsAtHugeFrameSize() {
+        for (int size : new int[]{0x7fffffff, 0x7ffffff0, 0x80000000, 0xffffffff}) {
+            byte[] artist = frame(3, "TPE1", text(0, "Artist"));
+            // Looks like a frame, if the album's data were taken for the next frame
+            byte[] album = frame(3, "TALB", frame(3, "TIT2", text(0, "Title")));
+            byte[] body = concat(artist, album);
+            putIntBe(body, artist.length + 4, size);
+            extract(tag(3, 0, body), kAudio);
+            assertTags("Artist", null, null);
+        }
+    }
+
+    @Test
+    public void stopsAtBadV22FrameSize() {
+        byte[] artist = frameV22("TP1", text(0, "Artist"));
+        byte[] body = concat(artist, frameV22("TAL", text(0, "Album")));
+        body[artist.length + 3] = (byte) 0xff;
+        extract(tag(2, 0, body), kAudio);
+        assertTags("Artist", null, null);
+    }
+
+    @Test
+    public void ignoresBadExtendedHeaderSize() {
+        byte[] frames = frame(3, "TPE1", text(0, "Artist"));
+        // Larger than the tag
+        extract(tag(3, 0x40, concat(new byte[]{0, 0, 1, 0, 0, 0, 0, 0, 0, 0}, frames)), kAudio);
+        assertTags(null, null, null);
+        // Negative
+        extract(tag(3, 0x40, concat(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfe, 0, 0}, frames)),
+                kAudio);
+        assertTags(null, null, null);
+        // Padding larger than the tag, and padding that overflows
+        extract(tag(3, 0x40, concat(new byte[]{0, 0, 0, 6, 0, 0, 0, 0, 1, 0}, frames)), kAudio);
+        assertTags(null, null, null);
+        extract(tag(3, 0x40, concat(new byte[]{0, 0, 0, 6, 0, 0, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff}, frames)),
+                kAudio);
+        assertTags(null, null, null);
+
+        frames = frame(4, "TPE1", text(3, "Artist"));
+        // Less than its own fields
+        extract(tag(4, 0x40, concat(new byte[]{0, 0, 0, 5, 1, 0}, frames)), kAudio);
+        assertTags(null, null, null);
+        // Larger than the tag
+        extract(tag(4, 0x40, concat(new byte[]{0, 0, 1, 0, 1, 0}, frames)), kAudio);
+        assertTags(null, null, null);
+    }
+
+    @Test
+    public void survivesTruncatedTag() {
+        byte[] body = concat(frame(3, "PRIV", new byte[100000]), frame(3, "TPE1", text(0, "Artist")));
+        byte[] file = tag(3, 0, body);
+        // The tag claims more than the file has, the file ends in the first frame
+        extract(Arrays.copyOf(file, 5000));
+        assertTags(null, null, null);
+        extract(Arrays.copyOf(file, 5000), id3V1("Title", "Artist 1", "Album"));
+        assertTags("Artist 1", "Album", "Title");
+        // Not even a header
+        extract(new byte[]{'I', 'D', '3', 3});
+        assertTags(null, null, null);
+    }
+
+    @Test
+    public void ignoresUnknownVersionAndFlags() {
+        byte[] body = frame(3, "TPE1", text(0, "Artist"));
+        extract(tag(5, 0, body), kAudio);
+        assertTags(null, null, null);
+        // Undefined flag
+        extract(tag(3, 0x01, body), kAudio);
+        assertTags(null, null, null);
+        // v2.2 compression
+        extract(tag(2, 0x40, frameV22("TP1", text(0, "Artist"))), kAudio);
+        assertTags(null, null, null);
+    }
+
+    @Test
+    public void decodesLegacyText() {
+        Charset windows1251 = Charset.forName("windows-1251");
+        byte[] artist = concat(new byte[]{0}, "Кино".getBytes(windows1251));
+        byte[] title = concat(new byte[]{0}, "Группа крови".getBytes(windows1251));
+        byte[] body = concat(frame(3, "TPE1", artist), frame(3, "TALB", text(0, "Album")), frame(3, "TIT2", title));
+        extract(tag(3, 0, body), kAudio);
+        assertTags("Кино", "Album", "Группа крови");
+    }
+
+    private void extract(byte[]... parts) {
+        extractor.extractMetadata(new ByteBufferReader(ByteBuffer.wrap(concat(parts))), null);
+    }
+
+    private void assertTags(String artist, String album, String title) {
+        assertEquals(artist, extractor.getArtist());
+        assertEquals(album, extractor.getAlbum());
+        assertEquals(title, extractor.getTitle());
+    }
+
+    private static byte[] tag(int version, int flags, byte[] body) {
+        byte[] header = {'I', 'D', '3', (byte) version, 0, (byte) flags, 0, 0, 0, 0};
+        putSyncsafe(header, 6, body.length);
+        return concat(header, body);
+    }
+
+    private static byte[] footer(int flags, int size) {
+        byte[] footer = {'3', 'D', 'I', 4, 0, (byte) flags, 0, 0, 0, 0};
+        putSyncsafe(footer, 6, size);
+        return footer;
+    }
+
+    private static byte[] frame(int version, String id, byte[] data) {
+        byte[] header = new byte[10];
+        for (int i = 0; i < 4; i++) {
+            header[i] = (byte) id.charAt(i);
+        }
+        if (version == 4) {
+            putSyncsafe(header, 4, data.length);
+        } else {
+            putIntBe(header, 4, data.length);
+        }
+        return concat(header, data);
+    }
+
+    private static byte[] frameV22(String id, byte[] data) {
+        byte[] header = {(byte) id.charAt(0), (byte) id.charAt(1), (byte) id.charAt(2),
+                (byte) (data.length >>> 16), (byte) (data.length >>> 8), (byte) data.length};
+        return concat(header, data);
+    }
+
+    /**
+     * Text frame content in the given ID3 encoding: 0 - ISO-8859-1, 1 - UTF-16 with BOM, 3 - UTF-8.
+     */
+    private static byte[] text(int encoding, String s) {
+        if (encoding == 1) {
+            // 0xff 0xfe
+            return concat(new byte[]{1, (byte) 0xff, (byte) 0xfe}, s.getBytes(StandardCharsets.UTF_16LE));
+        }
+        Charset charset = encoding == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+        return concat(new byte[]{(byte) encoding}, s.getBytes(charset));
+    }
+
+    private static byte[] id3V1(String title, String artist, String album) {
+        byte[] tag = new byte[128];
+        tag[0] = 'T';
+        tag[1] = 'A';
+        tag[2] = 'G';
+        putPadded(tag, 3, title);
+        putPadded(tag, 33, artist);
+        putPadded(tag, 63, album);
+        return tag;
+    }
+
+    /**
+     * Inserts a 0x00 after each 0xff that is followed by 0x00 or a byte that looks like an MPEG sync.
+     */
+    private static byte[] unsynchronize(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < data.length; i++) {
+            out.write(data[i]);
+            if ((data[i] & 0xff) == 0xff && (i + 1 == data.length || data[i + 1] == 0 || (data[i + 1] & 0xe0) == 0xe0)) {
+                out.write(0);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void putPadded(byte[] array, int offset, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(bytes, 0, array, offset, Math.min(bytes.length, 30));
+    }
+
+    private static void putIntBe(byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+
+    private static void putSyncsafe(byte[] array, int offset, int value) {
+        array[offset] = (byte) ((value >>> 21) & 0x7f);
+        array[offset + 1] = (byte) ((value >>> 14) & 0x7f);
+        array[offset + 2] = (byte) ((value >>> 7) & 0x7f);
+        array[offset + 3] = (byte) (value & 0x7f);
+    }
+}
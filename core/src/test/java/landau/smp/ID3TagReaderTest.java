@@ -0,0 +1,101 @@
+package landau.smp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class ID3TagReaderTest {
+    private final ID3TagReader reader = new ID3TagReader();
+
+    @Test
+    public void readsAcrossWindows() throws IOException {
+        byte[] data = sequence(20000);
+        reader.reset(new ByteBufferReader(ByteBuffer.wrap(data)), 10, 19000, false);
+        assertRead(data, 10, 4000);
+        // Crosses the end of the first window
+        assertRead(data, 4010, 200);
+        // Larger than the window, bypasses it
+        assertRead(data, 4210, 9000);
+        assertEquals(13200, reader.getPosition());
+        assertEquals(13210, reader.getFilePosition());
+    }
+
+    @Test
+    public void skips() throws IOException {
+        byte[] data = sequence(20000);
+        reader.reset(data, 0, 20000, false);
+        assertRead(data, 0, 10);
+        assertTrue(reader.skip(100));
+        assertRead(data, 110, 10);
+        // Past the window, without reading it
+        assertTrue(reader.skip(10000));
+        assertRead(data, 10120, 10);
+        assertEquals(10130, reader.getPosition());
+    }
+
+    @Test
+    public void stopsAtTagEnd() throws IOException {
+        byte[] data = sequence(10000);
+        reader.reset(data, 100, 5000, false);
+        byte[] dst = new byte[5001];
+        assertFalse(reader.read(dst, 0, 5001));
+        assertFalse(reader.skip(5001));
+        assertTrue(reader.skip(4990));
+        assertFalse(reader.read(dst, 0, 11));
+        assertTrue(reader.read(dst, 0, 10));
+        assertFalse(reader.read(dst, 0, 1));
+        assertFalse(reader.skip(1));
+    }
+
+    @Test
+    public void removesUnsyncBytes() throws IOException {
+        byte[] data = {1, (byte) 0xff, 0, (byte) 0xe0, (byte) 0xff, 0, 0, (byte) 0xff, (byte) 0xff, 0, 2};
+        reader.reset(data, 0, data.length, true);
+        byte[] dst = new byte[8];
+        assertTrue(reader.read(dst, 0, 8));
+        assertArrayEquals(new byte[]{1, (byte) 0xff, (byte) 0xe0, (byte) 0xff, 0, (byte) 0xff, (byte) 0xff, 2}, dst);
+        assertEquals(8, reader.getPosition());
+        assertEquals(data.length, reader.getFilePosition());
+        assertFalse(reader.read(dst, 0, 1));
+    }
+
+    @Test
+    public void removesUnsyncBytesAcrossWindows() throws IOException {
+        byte[] data = new byte[10000];
+        Arrays.fill(data, (byte) 'a');
+        // 0xff ends the first window, its unsync byte starts the next one
+        data[4095] = (byte) 0xff;
+        data[4096] = 0;
+        reader.reset(new ByteBufferReader(ByteBuffer.wrap(data)), 0, data.length, true);
+        assertTrue(reader.skip(4095));
+        byte[] dst = new byte[2];
+        assertTrue(reader.read(dst, 0, 2));
+        assertArrayEquals(new byte[]{(byte) 0xff, 'a'}, dst);
+        assertEquals(4097, reader.getPosition());
+        assertEquals(4098, reader.getFilePosition());
+        // One byte less than the file, as an unsync byte was dropped
+        assertTrue(reader.skip(data.length - 4098));
+        assertFalse(reader.skip(1));
+    }
+
+    private void assertRead(byte[] data, int offset, int len) throws IOException {
+        byte[] dst = new byte[len];
+        assertTrue(reader.read(dst, 0, len));
+        assertArrayEquals(Arrays.copyOfRange(data, offset, offset + len), dst);
+    }
+
+    private static byte[] sequence(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + i / 256);
+        }
+        return data;
+    }
+}
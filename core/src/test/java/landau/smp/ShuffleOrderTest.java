@@ -0,0 +1,90 @@
+package landau.smp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ShuffleOrderTest {
+    @Test
+    public void isBijection() {
+        // Around powers of 4, where the Feistel domain grows and cycle walking does the most
+        int[] sizes = {0, 1, 2, 3, 4, 5, 15, 16, 17, 63, 64, 65, 255, 256, 257, 1000, 4097};
+        for (int size : sizes) {
+            assertBijection(new ShuffleOrder(size, size), size);
+        }
+    }
+
+    @Test
+    public void isBijectionAcrossExtendedBlocks() {
+        ShuffleOrder order = new ShuffleOrder(42, 10);
+        int[] sizes = {11, 12, 30, 30, 64, 65, 200, 1000};
+        for (int size : sizes) {
+            order.extend(size);
+            assertEquals(size, order.size());
+            assertBijection(order, size);
+        }
+    }
+
+    @Test
+    public void extendKeepsExistingPositions() {
+        ShuffleOrder order = new ShuffleOrder(7, 100);
+        int[] before = new int[100];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = order.get(i);
+        }
+        order.extend(150);
+        order.extend(151);
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], order.get(i));
+        }
+        // Appended positions are shuffled among themselves
+        for (int i = 100; i < 150; i++) {
+            assertTrue(order.get(i) >= 100 && order.get(i) < 150);
+        }
+        assertEquals(150, order.get(150));
+    }
+
+    @Test
+    public void sameSeedGivesSameOrder() {
+        ShuffleOrder a = new ShuffleOrder(12345, 500);
+        ShuffleOrder b = new ShuffleOrder(12345, 500);
+        ShuffleOrder c = new ShuffleOrder(54321, 500);
+        boolean differs = false;
+        for (int i = 0; i < 500; i++) {
+            assertEquals(a.get(i), b.get(i));
+            differs |= a.get(i) != c.get(i);
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void shuffles() {
+        ShuffleOrder order = new ShuffleOrder(1, 1000);
+        int fixed = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (order.get(i) == i) {
+                fixed++;
+            }
+        }
+        // About 1 expected for a random permutation
+        assertTrue("fixed points: " + fixed, fixed < 10);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsPositionOutOfRange() {
+        new ShuffleOrder(1, 10).get(10);
+    }
+
+    private static void assertBijection(ShuffleOrder order, int size) {
+        boolean[] seen = new boolean[size];
+        for (int position = 0; position < size; position++) {
+            int index = order.get(position);
+            assertTrue(index >= 0 && index < size);
+            assertFalse("index " + index + " twice, size " + size, seen[index]);
+            seen[index] = true;
+            assertEquals(position, order.indexOf(index));
+        }
+    }
+}
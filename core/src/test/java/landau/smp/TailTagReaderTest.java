@@ -0,0 +1,140 @@
+package landau.smp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class TailTagReaderTest {
+    // Stands in for the MPEG frames
+    private static final byte[] kAudio = new byte[4096];
+
+    private final TailTagReader reader = new TailTagReader();
+
+    @Test
+    public void readsApe() throws IOException {
+        byte[] ape = ape(
+                item(0, "Artist", "Artist"),
+                item(0, "ALBUM", "Album\0Second value"),
+                // Binary, ignored
+                item(2, "Title", "Binary"),
+                item(0, "title", " Title "));
+        read(kAudio, ape);
+        assertEquals("Artist", reader.getApeArtist());
+        assertEquals("Album", reader.getApeAlbum());
+        assertEquals("Title", reader.getApeTitle());
+        assertEquals(-1, reader.getId3V1Offset());
+    }
+
+    @Test
+    public void readsApeBeforeId3V1() throws IOException {
+        byte[] v1 = new byte[128];
+        v1[0] = 'T';
+        v1[1] = 'A';
+        v1[2] = 'G';
+        byte[] ape = ape(item(0, "ARTIST", "Artist"));
+        read(kAudio, ape, v1);
+        assertEquals("Artist", reader.getApeArtist());
+        // The whole file fits in the buffer, so buffer offsets are file offsets
+        assertEquals(kAudio.length + ape.length, reader.getId3V1Offset());
+    }
+
+    @Test
+    public void findsAppendedId3V2() throws IOException {
+        byte[] tag = new byte[10 + 100 + 10];
+        System.arraycopy(new byte[]{'I', 'D', '3', 4, 0, 0x10, 0, 0, 0, 100}, 0, tag, 0, 10);
+        System.arraycopy(new byte[]{'3', 'D', 'I', 4, 0, 0x10, 0, 0, 0, 100}, 0, tag, 110, 10);
+        read(kAudio, tag);
+        assertEquals(kAudio.length, reader.getId3V2Offset());
+        assertEquals(100, reader.getId3V2Size());
+        // Size in the footer larger than the tag
+        tag[119] = (byte) 101;
+        read(kAudio, tag);
+        assertEquals(-1, reader.getId3V2Offset());
+    }
+
+    @Test
+    public void stopsAtHugeValueSize() throws IOException {
+        for (int size : new int[]{0x7fffffff, 0x7fffff00, 0x80000000, -1}) {
+            byte[] artist = item(0, "ARTIST", "Artist");
+            byte[] album = item(0, "ALBUM", "Album");
+            putIntLe(album, 0, size);
+            read(kAudio, ape(artist, album, item(0, "TITLE", "Title")));
+            assertEquals("Artist", reader.getApeArtist());
+            assertNull(reader.getApeAlbum());
+            assertNull(reader.getApeTitle());
+        }
+    }
+
+    @Test
+    public void stopsAtValuePastFooter() throws IOException {
+        byte[] title = item(0, "TITLE", "Title");
+        putIntLe(title, 0, 6);
+        read(kAudio, ape(item(0, "ARTIST", "Artist"), title));
+        assertEquals("Artist", reader.getApeArtist());
+        assertNull(reader.getApeTitle());
+    }
+
+    @Test
+    public void ignoresApeLargerThanBuffer() throws IOException {
+        byte[] ape = ape(item(0, "ARTIST", "Artist"));
+        // Claims more than the buffer holds, and a negative size
+        for (int size : new int[]{TailTagReader.kTailSize + 1, 0x7fffffff, -1, 31}) {
+            putIntLe(ape, ape.length - 32 + 12, size);
+            read(kAudio, ape);
+            assertNull(reader.getApeArtist());
+        }
+    }
+
+    private void read(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        reader.read(new ByteBufferReader(ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    /**
+     * APEv2 items followed by a footer, without a header.
+     */
+    private static byte[] ape(byte[]... items) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] item : items) {
+            out.write(item, 0, item.length);
+        }
+        // 8 - "APETAGEX", 4 - version, 4 - tag size (items and footer), 4 - item count, 4 - flags, 8 - reserved
+        byte[] footer = new byte[32];
+        System.arraycopy("APETAGEX".getBytes(StandardCharsets.US_ASCII), 0, footer, 0, 8);
+        putIntLe(footer, 8, 2000);
+        putIntLe(footer, 12, out.size() + footer.length);
+        putIntLe(footer, 16, items.length);
+        out.write(footer, 0, footer.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * An item with the given type, 0 - UTF-8 text, 1 - binary.
+     */
+    private static byte[] item(int type, String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] item = new byte[8 + keyBytes.length + 1 + valueBytes.length];
+        putIntLe(item, 0, valueBytes.length);
+        putIntLe(item, 4, type << 1);
+        System.arraycopy(keyBytes, 0, item, 8, keyBytes.length);
+        System.arraycopy(valueBytes, 0, item, 8 + keyBytes.length + 1, valueBytes.length);
+        return item;
+    }
+
+    private static void putIntLe(byte[] array, int offset, int value) {
+        array[offset] = (byte) value;
+        array[offset + 1] = (byte) (value >>> 8);
+        array[offset + 2] = (byte) (value >>> 16);
+        array[offset + 3] = (byte) (value >>> 24);
+    }
+}
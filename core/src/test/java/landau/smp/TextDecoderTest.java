@@ -0,0 +1,145 @@
+package landau.smp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public class TextDecoderTest {
+    private static final Charset kWindows1251 = Charset.forName("windows-1251");
+    private static final Charset kKoi8R = Charset.forName("KOI8-R");
+    private static final Charset kWindows1252 = Charset.forName("windows-1252");
+
+    private final TextDecoder decoder = new TextDecoder();
+
+    @Test
+    public void trimsAsciiAndPadding() {
+        assertEquals("Hello", decodeLegacy(" Hello \0\0\0".getBytes(StandardCharsets.US_ASCII), null));
+        assertNull(decodeLegacy("  \0\0".getBytes(StandardCharsets.US_ASCII), null));
+        assertNull(decodeLegacy(new byte[0], null));
+    }
+
+    @Test
+    public void decodesAtOffset() {
+        byte[] bytes = "xxHelloyy".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("Hello", decoder.decodeLegacy(bytes, 2, 5, null));
+        assertEquals("Hello", decoder.decode(StandardCharsets.UTF_8, bytes, 2, 5));
+    }
+
+    @Test
+    public void prefersValidUtf8() {
+        String s = "Песня о любви";
+        assertEquals(s, decodeLegacy(s.getBytes(StandardCharsets.UTF_8), kWindows1251));
+        assertEquals(s, decodeLegacy(s.getBytes(StandardCharsets.UTF_8), null));
+    }
+
+    @Test
+    public void guessesCyrillicCharset() {
+        String s = "Осень Любовь Дорога";
+        assertEquals(s, decodeLegacy(s.getBytes(kWindows1251), null));
+        assertEquals(s, decodeLegacy(s.getBytes(kKoi8R), null));
+    }
+
+    @Test
+    public void guessesWesternCharset() {
+        String s = "Café Müller – Señor";
+        assertEquals(s, decodeLegacy(s.getBytes(kWindows1252), null));
+    }
+
+    @Test
+    public void usesAssumedCharset() {
+        String s = "Осень Любовь Дорога";
+        byte[] koi8R = s.getBytes(kKoi8R);
+        assertEquals(new String(koi8R, kWindows1251), decodeLegacy(koi8R, kWindows1251));
+        assertNotEquals(s, decodeLegacy(koi8R, kWindows1251));
+    }
+
+    @Test
+    public void fallsBackForUndefinedBytes() {
+        // 0x98 is undefined in windows-1251
+        byte[] bytes = {(byte) 0xc0, (byte) 0x98, (byte) 0xc1};
+        assertEquals("À\u0098Á", decodeLegacy(bytes, kWindows1251));
+    }
+
+    @Test
+    public void decodesUnicode() {
+        String s = "Été ♫";
+        byte[] utf16 = s.getBytes(StandardCharsets.UTF_16);
+        assertEquals(s, decoder.decode(StandardCharsets.UTF_16, utf16, 0, utf16.length));
+        byte[] utf16Be = (s + "\0").getBytes(StandardCharsets.UTF_16BE);
+        assertEquals(s, decoder.decode(StandardCharsets.UTF_16BE, utf16Be, 0, utf16Be.length));
+        // Truncated sequence
+        assertNull(decoder.decode(StandardCharsets.UTF_8, new byte[]{'a', (byte) 0xe2, (byte) 0x82}, 0, 3));
+    }
+
+    @Test
+    public void validatesUtf8() {
+        assertTrue(isValidUtf8());
+        assertTrue(isValidUtf8('a', 'b'));
+        // €, and a 4 byte sequence
+        assertTrue(isValidUtf8(0xe2, 0x82, 0xac));
+        assertTrue(isValidUtf8(0xf0, 0x9f, 0x8e, 0xb5));
+        // Overlong encodings
+        assertFalse(isValidUtf8(0xc0, 0x80));
+        assertFalse(isValidUtf8(0xe0, 0x80, 0x80));
+        // Surrogate
+        assertFalse(isValidUtf8(0xed, 0xa0, 0x80));
+        // Above U+10FFFF
+        assertFalse(isValidUtf8(0xf4, 0x90, 0x80, 0x80));
+        // Truncated, and a continuation byte alone
+        assertFalse(isValidUtf8(0xe2, 0x82));
+        assertFalse(isValidUtf8(0x80));
+        assertFalse(isValidUtf8(0xff));
+    }
+
+    @Test
+    public void checksAscii() {
+        assertTrue(TextDecoder.isAscii(new byte[]{'a', 0, 0x7f}, 0, 3));
+        assertFalse(TextDecoder.isAscii(new byte[]{'a', (byte) 0x80}, 0, 2));
+        assertTrue(TextDecoder.isAscii(new byte[]{'a', (byte) 0x80}, 0, 1));
+    }
+
+    @Test
+    public void classifies() {
+        assertEquals(kWindows1251, classify("Звезда над рекой".getBytes(kWindows1251)));
+        assertEquals(kKoi8R, classify("Звезда над рекой".getBytes(kKoi8R)));
+        assertEquals(kWindows1252, classify("Déjà vu – live".getBytes(kWindows1252)));
+        // Only bytes that windows-1252 doesn't define
+        assertEquals(StandardCharsets.ISO_8859_1, classify(new byte[]{'a', 'b', 'c', (byte) 0x81, 'd'}));
+    }
+
+    @Test
+    public void reinterpretsWindows1252() {
+        String s = "Ветер и солнце";
+        String misdecoded = new String(s.getBytes(kWindows1251), kWindows1252);
+        assertEquals(s, decoder.reinterpretWindows1252(misdecoded, null));
+        assertEquals(s, decoder.reinterpretWindows1252(misdecoded, kWindows1251));
+        String ascii = "Plain";
+        assertSame(ascii, decoder.reinterpretWindows1252(ascii, null));
+        // Not from windows-1252, so left alone
+        assertSame(s, decoder.reinterpretWindows1252(s, null));
+    }
+
+    private String decodeLegacy(byte[] bytes, Charset assumedCharset) {
+        return decoder.decodeLegacy(bytes, 0, bytes.length, assumedCharset);
+    }
+
+    private static boolean isValidUtf8(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return TextDecoder.isValidUtf8(bytes, 0, bytes.length);
+    }
+
+    private static Charset classify(byte[] bytes) {
+        return TextDecoder.classify(bytes, 0, bytes.length);
+    }
+}
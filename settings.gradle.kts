@@ -21,3 +21,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "Sane Media Player"
 include(":app")
+include(":core")